@@ -1,12 +1,18 @@
 package net.quanzy.authzmod.db;
 
-import java.lang.reflect.Constructor;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.nio.ByteBuffer;
+import java.util.function.Function;
 
 public abstract class AbstractRecord<KEY> {
 
     protected ByteBuffer contents;
 
+    private boolean tombstone;
+
     public AbstractRecord() {
         this.contents = ByteBuffer.allocate(0);
     }
@@ -15,8 +21,15 @@ public abstract class AbstractRecord<KEY> {
         this.contents = contents.duplicate();
     }
 
+    private static final ClassValue<Function<ByteBuffer, ?>> FACTORIES = new ClassValue<>() {
+        @Override
+        protected Function<ByteBuffer, ?> computeValue(Class<?> type) {
+            return createFactory(type);
+        }
+    };
+
     /**
-     * Builds a record instance from the given ByteBuffer using reflection.
+     * Builds a record instance from the given ByteBuffer with the cached factory of the class.
      *
      * @param recordBuffer the ByteBuffer containing the record data
      * @param clazz        the class of the record to be instantiated
@@ -26,15 +39,78 @@ public abstract class AbstractRecord<KEY> {
      */
     @SuppressWarnings("unchecked")
     public static <KEY, RECORD> AbstractRecord<KEY> build(ByteBuffer recordBuffer, Class<? extends RECORD> clazz) {
+        return (AbstractRecord<KEY>) factory(clazz).apply(recordBuffer);
+    }
+
+    /**
+     * Returns a function calling the {@code (ByteBuffer)} constructor of the record class.
+     * The function is generated once per class, so no reflection happens per record.
+     *
+     * @param clazz    the class of the record
+     * @param <RECORD> the type of the record
+     * @return record factory
+     */
+    @SuppressWarnings("unchecked")
+    public static <RECORD> Function<ByteBuffer, RECORD> factory(Class<? extends RECORD> clazz) {
+        return (Function<ByteBuffer, RECORD>) FACTORIES.get(clazz);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Function<ByteBuffer, ?> createFactory(Class<?> clazz) {
+        MethodHandle constructor;
+        MethodHandles.Lookup lookup;
         try {
-            Constructor<? extends RECORD> declaredConstructor = clazz.getDeclaredConstructor(ByteBuffer.class);
-            declaredConstructor.setAccessible(true);
-            return (AbstractRecord<KEY>) declaredConstructor.newInstance(recordBuffer);
+            lookup = MethodHandles.privateLookupIn(clazz, MethodHandles.lookup());
+            constructor = lookup.findConstructor(clazz, MethodType.methodType(void.class, ByteBuffer.class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("No ByteBuffer constructor in " + clazz.getName(), e);
+        }
+        try {
+            return (Function<ByteBuffer, ?>) LambdaMetafactory.metafactory(lookup, "apply",
+                    MethodType.methodType(Function.class),
+                    MethodType.methodType(Object.class, Object.class),
+                    constructor,
+                    MethodType.methodType(clazz, ByteBuffer.class)
+            ).getTarget().invokeExact();
         } catch (Throwable e) {
-            throw new RuntimeException(e);
+            // e.g. a lookup without full privilege access, fall back to calling the handle
+            MethodHandle generic = constructor.asType(MethodType.methodType(Object.class, ByteBuffer.class));
+            return buffer -> {
+                try {
+                    return generic.invokeExact(buffer);
+                } catch (RuntimeException | Error ex) {
+                    throw ex;
+                } catch (Throwable ex) {
+                    throw new RuntimeException(ex);
+                }
+            };
         }
     }
 
+    /**
+     * Points this record at other contents, so a single instance can serve as a view over many records.
+     * @param contents record contents
+     */
+    void wrap(ByteBuffer contents) {
+        this.contents = contents;
+    }
+
+    /**
+     * Checks whether this record marks its key as deleted. A tombstone keeps the contents
+     * of the deleted record, so its key can be read as usual.
+     * @return true for a tombstone
+     */
+    public boolean isTombstone() {
+        return tombstone;
+    }
+
+    /**
+     * Turns this record into a tombstone of its key.
+     */
+    public void markTombstone() {
+        this.tombstone = true;
+    }
+
     /**
      * Returns the size of the buffer.
      * @return size of buffer
@@ -105,7 +181,17 @@ public abstract class AbstractRecord<KEY> {
      * @return length of contents
      */
     public int length() {
-        return contents().remaining();
+        return contents.position() > 0 ? contents.position() : contents.limit();
+    }
+
+    /**
+     * Copies the bytes returned by {@link #contents()} into the target buffer without creating views.
+     * @param target buffer with at least {@link #length()} bytes remaining
+     */
+    public void writeTo(ByteBuffer target) {
+        int length = length();
+        target.put(target.position(), contents, 0, length);
+        target.position(target.position() + length);
     }
 
     /**
@@ -2,18 +2,48 @@ package net.quanzy.authzmod.db;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.List;
+import net.quanzy.authzmod.db.utils.Kdf;
 import net.quanzy.authzmod.db.utils.Utils;
+import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 
 /**
  * Authorization record containing username and password hash.
+ * <p>
+ * Records are written in the binary layout with a fixed-width digest at a fixed offset:
+ * <pre>
+ * int marker | byte[32] SHA-256 digest | int username length | username
+ * </pre>
+ * Records hashed with a slow {@link Kdf} keep its parameters next to the derived key:
+ * <pre>
+ * int marker | int kdf id | int iterations | byte[16] salt | byte[32] key | int username length | username
+ * </pre>
+ * Markers are negative, so they tell binary records from those of the earlier hex layout,
+ * {@code int username length | username | int 64 | hex digest}, which are still read transparently.
  */
 public class AuthzRecord extends AbstractRecord<String> {
 
-    private final Serializers<String> serializer = new StringSerializer();
+    private static final Serializers<String> SERIALIZER = new StringSerializer();
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final int BINARY_LAYOUT = 0x80000002;
+    private static final int DIGEST_LENGTH = 32;
+    private static final int DIGEST_OFFSET = Integer.BYTES;
+    private static final int USERNAME_OFFSET = DIGEST_OFFSET + DIGEST_LENGTH;
+    private static final int SALTED_LAYOUT = 0x80000003;
+    private static final int KDF_OFFSET = Integer.BYTES;
+    private static final int ITERATIONS_OFFSET = KDF_OFFSET + Integer.BYTES;
+    private static final int SALT_OFFSET = ITERATIONS_OFFSET + Integer.BYTES;
+    private static final int SALT_LENGTH = 16;
+    private static final int KEY_OFFSET = SALT_OFFSET + SALT_LENGTH;
+    private static final int SALTED_USERNAME_OFFSET = KEY_OFFSET + DIGEST_LENGTH;
+    private static final SecureRandom random = new SecureRandom();
+
+    private String key;
 
     /**
-     * Creates record from username and password hash.
+     * Creates record in the hex layout from username and password hash.
      * @param username username in bytes
      * @param passwordHash password hash in bytes
      */
@@ -26,9 +56,24 @@ public class AuthzRecord extends AbstractRecord<String> {
         super(buffer);
     }
 
+    @Override
+    void wrap(ByteBuffer contents) {
+        super.wrap(contents);
+        key = null;
+    }
+
+    /**
+     * Returns the username, decoded once per record.
+     * @return user name
+     */
     @Override
     public String getKey() {
-        return getUsername();
+        String result = key;
+        if (result == null) {
+            result = getUsername();
+            key = result;
+        }
+        return result;
     }
 
     /**
@@ -38,26 +83,198 @@ public class AuthzRecord extends AbstractRecord<String> {
      * @return created record
      */
     public static AuthzRecord create(String username, String password) {
+        return binary(username.getBytes(StandardCharsets.UTF_8), Utils.digest(password));
+    }
+
+    /**
+     * Creates record from username and password hashed with a salted slow key derivation function.
+     * @param username   user name
+     * @param password   password
+     * @param kdf        key derivation function
+     * @param iterations iteration count of the function
+     * @return created record
+     */
+    public static AuthzRecord create(String username, CharSequence password, Kdf kdf, int iterations) {
+        byte[] user = username.getBytes(StandardCharsets.UTF_8);
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        ByteBuffer buffer = ByteBuffer.allocate(SALTED_USERNAME_OFFSET + Integer.BYTES + user.length);
+        buffer.putInt(SALTED_LAYOUT).putInt(kdf.getId()).putInt(iterations).put(salt)
+                .put(kdf.derive(password, salt, iterations, DIGEST_LENGTH))
+                .putInt(user.length).put(user);
+        return new AuthzRecord(buffer.flip());
+    }
+
+    /**
+     * Creates record in the hex layout written by earlier versions.
+     * @param username user name
+     * @param password password
+     * @return created record
+     */
+    static AuthzRecord createHex(String username, String password) {
         return new AuthzRecord(
             username.getBytes(StandardCharsets.UTF_8),
             Hex.encodeHexString(Utils.digest(password)).getBytes()
         );
     }
 
+    private static AuthzRecord binary(byte[] username, byte[] digest) {
+        if (digest.length != DIGEST_LENGTH) {
+            throw new IllegalArgumentException("Digest must be " + DIGEST_LENGTH + " bytes, got " + digest.length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(USERNAME_OFFSET + Integer.BYTES + username.length);
+        buffer.putInt(BINARY_LAYOUT).put(digest).putInt(username.length).put(username);
+        return new AuthzRecord(buffer.flip());
+    }
+
+    /**
+     * Returns the record in the binary layout, converting a record of the hex layout.
+     * @return this record if it is binary already, a new record otherwise
+     */
+    public AuthzRecord upgrade() {
+        if (isBinary()) {
+            return this;
+        }
+        byte[] username = new byte[contents.getInt(0)];
+        contents.get(Integer.BYTES, username);
+        try {
+            return binary(username, Hex.decodeHex(getHash()));
+        } catch (DecoderException e) {
+            throw new IllegalStateException("Malformed hash of user " + getUsername(), e);
+        }
+    }
+
+    /**
+     * Checks whether the record is in a binary layout.
+     * @return false for records of the hex layout
+     */
+    public boolean isBinary() {
+        return contents.getInt(0) < 0;
+    }
+
+    /**
+     * Checks whether the password is hashed with a salted key derivation function.
+     * @return true for records created with a {@link Kdf}
+     */
+    public boolean isSalted() {
+        return contents.getInt(0) == SALTED_LAYOUT;
+    }
+
+    private int usernameOffset() {
+        switch (contents.getInt(0)) {
+            case BINARY_LAYOUT: return USERNAME_OFFSET;
+            case SALTED_LAYOUT: return SALTED_USERNAME_OFFSET;
+            default: return 0;
+        }
+    }
+
+    private int hashOffset() {
+        return isSalted() ? KEY_OFFSET : DIGEST_OFFSET;
+    }
+
     /**
      * Extracts username from record.
      * @return user name
      */
     public String getUsername() {
         ByteBuffer fieldBuffer = contents();
-        return serializer.read(fieldBuffer);
+        return SERIALIZER.read(fieldBuffer.position(usernameOffset()));
     }
 
     /**
-     * Extracts password hash from record.
+     * Extracts password hash, or key derived from the password, from record as hex digits.
      * @return password hash
      */
     public String getHash() {
-        return serializer.read(skipString());
+        if (isBinary()) {
+            byte[] digest = new byte[DIGEST_LENGTH];
+            contents.get(hashOffset(), digest);
+            return Hex.encodeHexString(digest);
+        }
+        return SERIALIZER.read(skipString());
+    }
+
+    /**
+     * Compares the stored username with the given bytes without decoding it.
+     * @param username user name in UTF-8
+     * @return true if the username is equal
+     */
+    public boolean matchesUsername(byte[] username) {
+        int offset = usernameOffset();
+        if (contents.getInt(offset) != username.length) {
+            return false;
+        }
+        for (int i = 0; i < username.length; i++) {
+            if (contents.get(offset + Integer.BYTES + i) != username[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks the password against the stored hash. For salted records this runs the slow
+     * key derivation function, see {@link PasswordVerifier} to keep it off latency-sensitive threads.
+     * @param password password to check
+     * @return true if the password matches
+     */
+    public boolean verify(CharSequence password) {
+        if (isSalted()) {
+            byte[] salt = new byte[SALT_LENGTH];
+            contents.get(SALT_OFFSET, salt);
+            Kdf kdf = Kdf.byId(contents.getInt(KDF_OFFSET));
+            return hashEquals(kdf.derive(password, salt, contents.getInt(ITERATIONS_OFFSET), DIGEST_LENGTH));
+        }
+        return hashEquals(Utils.digest(password));
+    }
+
+    /**
+     * Checks passwords against records one after another on the caller,
+     * see {@link PasswordVerifier#verifyAll(List, List)} to spread a batch over worker threads.
+     * @param records   records to check
+     * @param passwords password for each record
+     * @return result of {@link #verify(CharSequence)} for each record
+     */
+    public static boolean[] verifyAll(List<AuthzRecord> records, List<? extends CharSequence> passwords) {
+        if (records.size() != passwords.size()) {
+            throw new IllegalArgumentException("Got " + records.size() + " records and " + passwords.size() + " passwords");
+        }
+        boolean[] result = new boolean[records.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = records.get(i).verify(passwords.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Compares the stored hash with a password digest in time independent of where they differ.
+     * Hex digits of the earlier layout are compared against the digest nibble by nibble, without encoding it.
+     * @param digest raw digest of the password, see {@link Utils#digest(CharSequence)},
+     *               or the derived key for salted records
+     * @return true if the hash matches the digest
+     */
+    public boolean hashEquals(byte[] digest) {
+        if (isBinary()) {
+            if (digest.length != DIGEST_LENGTH) {
+                return false;
+            }
+            int offset = hashOffset();
+            int difference = 0;
+            for (int i = 0; i < DIGEST_LENGTH; i++) {
+                difference |= contents.get(offset + i) ^ digest[i];
+            }
+            return difference == 0;
+        }
+        int hashPosition = Integer.BYTES + contents.getInt(0);
+        if (contents.getInt(hashPosition) != digest.length * 2) {
+            return false;
+        }
+        int start = hashPosition + Integer.BYTES;
+        int difference = 0;
+        for (int i = 0; i < digest.length; i++) {
+            difference |= contents.get(start + 2 * i) ^ HEX_DIGITS[(digest[i] >> 4) & 0xF];
+            difference |= contents.get(start + 2 * i + 1) ^ HEX_DIGITS[digest[i] & 0xF];
+        }
+        return difference == 0;
     }
 }
@@ -0,0 +1,72 @@
+package net.quanzy.authzmod.db;
+
+/**
+ * Snapshot of record cache counters.
+ */
+public class CacheStats {
+    private final long hitCount;
+    private final long negativeHitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final long size;
+    private final long weight;
+
+    public CacheStats(long hitCount, long negativeHitCount, long missCount, long evictionCount, long size, long weight) {
+        this.hitCount = hitCount;
+        this.negativeHitCount = negativeHitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.size = size;
+        this.weight = weight;
+    }
+
+    /**
+     * Returns number of lookups served with a cached record.
+     * @return hit count
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns number of lookups served with a cached absence of the key.
+     * @return negative hit count
+     */
+    public long getNegativeHitCount() {
+        return negativeHitCount;
+    }
+
+    /**
+     * Returns number of lookups that went to storage.
+     * @return miss count
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Returns number of cached records.
+     * @return number of records
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns total size of cached records in bytes.
+     * @return weight of cache
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{hits=" + hitCount + ", negativeHits=" + negativeHitCount + ", misses=" + missCount
+                + ", evictions=" + evictionCount + ", size=" + size + ", weight=" + weight + "}";
+    }
+}
@@ -0,0 +1,132 @@
+package net.quanzy.authzmod.db;
+
+/**
+ * Snapshot of flush and compaction counters.
+ */
+public class FlushStats {
+    private final long flushCount;
+    private final long failureCount;
+    private final long recordsWritten;
+    private final long bytesWritten;
+    private final long totalFlushNanos;
+    private final long maxFlushNanos;
+    private final long compactionCount;
+    private final long bytesCompacted;
+    private final long dataLength;
+    private final long garbageLength;
+
+    public FlushStats(long flushCount, long failureCount, long recordsWritten, long bytesWritten,
+                      long totalFlushNanos, long maxFlushNanos, long compactionCount, long bytesCompacted,
+                      long dataLength, long garbageLength) {
+        this.flushCount = flushCount;
+        this.failureCount = failureCount;
+        this.recordsWritten = recordsWritten;
+        this.bytesWritten = bytesWritten;
+        this.totalFlushNanos = totalFlushNanos;
+        this.maxFlushNanos = maxFlushNanos;
+        this.compactionCount = compactionCount;
+        this.bytesCompacted = bytesCompacted;
+        this.dataLength = dataLength;
+        this.garbageLength = garbageLength;
+    }
+
+    /**
+     * Returns number of completed flushes.
+     * @return flush count
+     */
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    /**
+     * Returns number of flushes that failed. Their records are written by the next flush.
+     * @return failure count
+     */
+    public long getFailureCount() {
+        return failureCount;
+    }
+
+    public long getRecordsWritten() {
+        return recordsWritten;
+    }
+
+    /**
+     * Returns number of bytes appended to the data file.
+     * @return bytes written
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Returns total duration of completed flushes.
+     * @return duration in nanoseconds
+     */
+    public long getTotalFlushNanos() {
+        return totalFlushNanos;
+    }
+
+    /**
+     * Returns duration of the longest flush.
+     * @return duration in nanoseconds
+     */
+    public long getMaxFlushNanos() {
+        return maxFlushNanos;
+    }
+
+    /**
+     * Returns number of completed compactions.
+     * @return compaction count
+     */
+    public long getCompactionCount() {
+        return compactionCount;
+    }
+
+    /**
+     * Returns number of bytes written to new data files by compactions.
+     * @return bytes compacted
+     */
+    public long getBytesCompacted() {
+        return bytesCompacted;
+    }
+
+    /**
+     * Returns length of the committed data.
+     * @return data length
+     */
+    public long getDataLength() {
+        return dataLength;
+    }
+
+    /**
+     * Returns number of committed bytes taken by replaced versions and tombstones.
+     * @return garbage length
+     */
+    public long getGarbageLength() {
+        return garbageLength;
+    }
+
+    /**
+     * Returns bytes written by flushes and compactions per byte flushed.
+     * @return write amplification, 1 when nothing was compacted
+     */
+    public double getWriteAmplification() {
+        return bytesWritten == 0 ? 1 : (double) (bytesWritten + bytesCompacted) / bytesWritten;
+    }
+
+    /**
+     * Returns ratio of the committed data length to the length of its live records.
+     * @return space amplification, 1 without garbage and infinite when every record is garbage
+     */
+    public double getSpaceAmplification() {
+        return garbageLength == 0 ? 1 : (double) dataLength / (dataLength - garbageLength);
+    }
+
+    @Override
+    public String toString() {
+        return "FlushStats{flushes=" + flushCount + ", failures=" + failureCount + ", records=" + recordsWritten
+                + ", bytes=" + bytesWritten + ", totalMillis=" + totalFlushNanos / 1_000_000
+                + ", maxMillis=" + maxFlushNanos / 1_000_000 + ", compactions=" + compactionCount
+                + ", compactedBytes=" + bytesCompacted + ", garbage=" + garbageLength + "/" + dataLength + "}";
+    }
+}
@@ -0,0 +1,38 @@
+package net.quanzy.authzmod.db;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Invalidation counters of record caches, striped by key hash. A load takes the stamp of its key before reading
+ * and populates the cache only if the stamp is unchanged, so an invalidation discards loads of keys in its stripe
+ * and leaves loads of other keys alone.
+ */
+final class LoadStamps {
+    private static final int STRIPES = 256;
+
+    private final AtomicLongArray stamps = new AtomicLongArray(STRIPES);
+
+    private static int stripe(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return h & (STRIPES - 1);
+    }
+
+    long get(Object key) {
+        return stamps.get(stripe(key));
+    }
+
+    boolean isCurrent(Object key, long stamp) {
+        return stamps.get(stripe(key)) == stamp;
+    }
+
+    void invalidate(Object key) {
+        stamps.incrementAndGet(stripe(key));
+    }
+
+    void invalidateAll() {
+        for (int i = 0; i < STRIPES; i++) {
+            stamps.incrementAndGet(i);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package net.quanzy.authzmod.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Size-bounded LRU cache. Records are weighed by {@link AbstractRecord#getSize()}.
+ * The cache is split into independently locked shards, each owning an equal part of the weight limit,
+ * and keeps a bounded LRU set of keys known to be absent from storage.
+ */
+class LruRecordCache<KEY, RECORD extends AbstractRecord<KEY>> implements RecordCache<KEY, RECORD> {
+    private static final int SHARDS = 16;
+
+    private final Shard<KEY, RECORD>[] shards;
+    private final LoadStamps stamps = new LoadStamps();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    LruRecordCache(long maxWeight, int maxNegativeEntries) {
+        this.shards = new Shard[SHARDS];
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard<>(Math.max(1, maxWeight / SHARDS), Math.max(0, maxNegativeEntries / SHARDS));
+        }
+    }
+
+    private Shard<KEY, RECORD> shardFor(KEY key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return shards[h & (SHARDS - 1)];
+    }
+
+    @Override
+    public RECORD get(KEY key, Function<KEY, RECORD> loader) {
+        Shard<KEY, RECORD> shard = shardFor(key);
+        synchronized (shard) {
+            RECORD cached = shard.records.get(key);
+            if (cached != null) {
+                hits.increment();
+                return cached;
+            }
+            if (shard.absent.get(key) != null) {
+                negativeHits.increment();
+                return null;
+            }
+        }
+        misses.increment();
+        long stamp = stamps.get(key);
+        RECORD loaded = loader.apply(key);
+        synchronized (shard) {
+            if (stamps.isCurrent(key, stamp)) {
+                if (loaded == null) {
+                    shard.absent.put(key, Boolean.TRUE);
+                } else {
+                    evictions.add(shard.put(key, loaded));
+                }
+            }
+        }
+        return loaded;
+    }
+
+    @Override
+    public RECORD getIfPresent(KEY key) {
+        Shard<KEY, RECORD> shard = shardFor(key);
+        synchronized (shard) {
+            RECORD cached = shard.records.get(key);
+            if (cached != null) {
+                hits.increment();
+            }
+            return cached;
+        }
+    }
+
+    @Override
+    public Map<KEY, RECORD> getAll(Collection<KEY> keys, Function<Collection<KEY>, Map<KEY, RECORD>> loader) {
+        Map<KEY, RECORD> result = new HashMap<>(keys.size() * 4 / 3 + 1);
+        List<KEY> missing = new ArrayList<>();
+        for (KEY key : keys) {
+            Shard<KEY, RECORD> shard = shardFor(key);
+            synchronized (shard) {
+                RECORD cached = shard.records.get(key);
+                if (cached != null) {
+                    hits.increment();
+                    result.put(key, cached);
+                } else if (shard.absent.get(key) != null) {
+                    negativeHits.increment();
+                } else {
+                    missing.add(key);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+        misses.add(missing.size());
+        long[] loadStamps = new long[missing.size()];
+        for (int i = 0; i < loadStamps.length; i++) {
+            loadStamps[i] = stamps.get(missing.get(i));
+        }
+        Map<KEY, RECORD> loaded = loader.apply(missing);
+        for (int i = 0; i < loadStamps.length; i++) {
+            KEY key = missing.get(i);
+            RECORD record = loaded.get(key);
+            Shard<KEY, RECORD> shard = shardFor(key);
+            synchronized (shard) {
+                if (stamps.isCurrent(key, loadStamps[i])) {
+                    if (record == null) {
+                        shard.absent.put(key, Boolean.TRUE);
+                    } else {
+                        evictions.add(shard.put(key, record));
+                    }
+                }
+            }
+        }
+        result.putAll(loaded);
+        return result;
+    }
+
+    @Override
+    public void invalidate(KEY key) {
+        stamps.invalidate(key);
+        Shard<KEY, RECORD> shard = shardFor(key);
+        synchronized (shard) {
+            shard.remove(key);
+            shard.absent.remove(key);
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        stamps.invalidateAll();
+        for (Shard<KEY, RECORD> shard : shards) {
+            synchronized (shard) {
+                shard.records.clear();
+                shard.absent.clear();
+                shard.weight = 0;
+            }
+        }
+    }
+
+    @Override
+    public CacheStats stats() {
+        long size = 0;
+        long weight = 0;
+        for (Shard<KEY, RECORD> shard : shards) {
+            synchronized (shard) {
+                size += shard.records.size();
+                weight += shard.weight;
+            }
+        }
+        return new CacheStats(hits.sum(), negativeHits.sum(), misses.sum(), evictions.sum(), size, weight);
+    }
+
+    private static class Shard<KEY, RECORD extends AbstractRecord<KEY>> {
+        private final LinkedHashMap<KEY, RECORD> records = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<KEY, Boolean> absent;
+        private final long maxWeight;
+        private long weight;
+
+        Shard(long maxWeight, int maxNegativeEntries) {
+            this.maxWeight = maxWeight;
+            this.absent = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<KEY, Boolean> eldest) {
+                    return size() > maxNegativeEntries;
+                }
+            };
+        }
+
+        /**
+         * Puts record and evicts least recently used ones over the weight limit.
+         * @return number of evicted records
+         */
+        int put(KEY key, RECORD record) {
+            if (record.getSize() > maxWeight) {
+                return 0;
+            }
+            RECORD previous = records.put(key, record);
+            if (previous != null) {
+                weight -= previous.getSize();
+            }
+            weight += record.getSize();
+            int evicted = 0;
+            Iterator<RECORD> eldest = records.values().iterator();
+            while (weight > maxWeight && eldest.hasNext()) {
+                weight -= eldest.next().getSize();
+                eldest.remove();
+                evicted++;
+            }
+            return evicted;
+        }
+
+        void remove(KEY key) {
+            RECORD previous = records.remove(key);
+            if (previous != null) {
+                weight -= previous.getSize();
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package net.quanzy.authzmod.db;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks passwords on a bounded pool of worker threads, so slow key derivation does not run on the caller.
+ * When all workers are busy and the queue is full, verification is rejected right away
+ * instead of piling up work, which keeps a login flood from starving the server.
+ */
+public class PasswordVerifier implements Closeable {
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong verifiedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * Creates verifier.
+     * @param threads       number of worker threads
+     * @param queueCapacity number of verifications waiting for a worker before new ones are rejected
+     */
+    public PasswordVerifier(int threads, int queueCapacity) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "password-verifier-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Checks the password against the record on a worker thread.
+     * @param record   record of the user
+     * @param password password to check
+     * @return future completed with the result of {@link AuthzRecord#verify(CharSequence)},
+     *         or failed with {@link RejectedExecutionException} if the queue is full
+     */
+    public CompletableFuture<Boolean> verify(AuthzRecord record, CharSequence password) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                boolean result = record.verify(password);
+                verifiedCount.incrementAndGet();
+                return result;
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Checks a batch of passwords on the worker threads, split into one part per worker.
+     * @param records   records to check
+     * @param passwords password for each record
+     * @return future completed with the result of {@link AuthzRecord#verify(CharSequence)} for each record,
+     *         or failed with {@link RejectedExecutionException} if the queue cannot take every part
+     */
+    public CompletableFuture<boolean[]> verifyAll(List<AuthzRecord> records, List<? extends CharSequence> passwords) {
+        if (records.size() != passwords.size()) {
+            throw new IllegalArgumentException("Got " + records.size() + " records and " + passwords.size() + " passwords");
+        }
+        boolean[] result = new boolean[records.size()];
+        int parts = Math.max(1, Math.min(executor.getCorePoolSize(), result.length));
+        CompletableFuture<?>[] checked = new CompletableFuture<?>[parts];
+        for (int part = 0; part < parts; part++) {
+            int from = (int) ((long) result.length * part / parts);
+            int to = (int) ((long) result.length * (part + 1) / parts);
+            try {
+                checked[part] = CompletableFuture.runAsync(() -> {
+                    // parts write disjoint ranges, completion of every part publishes them
+                    boolean[] verified = AuthzRecord.verifyAll(records.subList(from, to), passwords.subList(from, to));
+                    System.arraycopy(verified, 0, result, from, verified.length);
+                    verifiedCount.addAndGet(verified.length);
+                }, executor);
+            } catch (RejectedExecutionException e) {
+                rejectedCount.addAndGet(result.length - from);
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        return CompletableFuture.allOf(checked).thenApply(ignored -> result);
+    }
+
+    /**
+     * Looks the user up without blocking and checks the password on a worker thread, e.g. when a player joins.
+     * Neither the lookup nor the check runs on the caller unless the record is pending or cached.
+     * @param table    table of users
+     * @param username name of the user
+     * @param password password to check
+     * @return future completed with false if there is no such user, otherwise as {@link #verify(AuthzRecord, CharSequence)}
+     */
+    public CompletableFuture<Boolean> verify(Table<String, AuthzRecord> table, String username, CharSequence password) {
+        return table.getRecordAsync(username).thenCompose(record -> record
+                .map(found -> verify(found, password))
+                .orElseGet(() -> CompletableFuture.completedFuture(false)));
+    }
+
+    /**
+     * Returns number of verifications waiting for a worker.
+     * @return queue depth
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Returns number of verifications running right now.
+     * @return active count
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Returns number of finished verifications.
+     * @return verified count
+     */
+    public long getVerifiedCount() {
+        return verifiedCount.get();
+    }
+
+    /**
+     * Returns number of verifications rejected because the queue was full.
+     * @return rejected count
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Stops accepting verifications, queued ones still run.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
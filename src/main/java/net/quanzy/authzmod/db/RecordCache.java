@@ -0,0 +1,86 @@
+package net.quanzy.authzmod.db;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Cache of records read from the data file.
+ * A cache may remember keys that are absent from the data file (negative entries),
+ * so the loader is allowed to return null.
+ *
+ * @param <KEY>    type of the key
+ * @param <RECORD> type of the record
+ */
+public interface RecordCache<KEY, RECORD extends AbstractRecord<KEY>> {
+
+    /**
+     * Eviction policy of a record cache.
+     */
+    enum Policy {
+        /**
+         * Keeps every loaded record, never evicts.
+         */
+        UNBOUNDED,
+        /**
+         * Evicts least recently used records once the total record size exceeds the limit.
+         */
+        LRU
+    }
+
+    /**
+     * Returns cached record or loads it.
+     * @param key    key of the record
+     * @param loader function reading the record from storage, may return null
+     * @return record or null if there is no record for the key
+     */
+    RECORD get(KEY key, Function<KEY, RECORD> loader);
+
+    /**
+     * Returns cached record without loading it.
+     * @param key key of the record
+     * @return record or null if the record is not cached or the key is cached as absent
+     */
+    RECORD getIfPresent(KEY key);
+
+    /**
+     * Returns cached records and loads the missing ones in a single call.
+     * @param keys   keys of the records
+     * @param loader function reading records of missing keys from storage, leaves out absent keys
+     * @return records found for the keys, absent keys are left out
+     */
+    Map<KEY, RECORD> getAll(Collection<KEY> keys, Function<Collection<KEY>, Map<KEY, RECORD>> loader);
+
+    /**
+     * Drops cached record or negative entry for the key.
+     * Loads of the key started before this call do not populate the cache, loads of other keys may be discarded
+     * only when they share its invalidation stripe.
+     * @param key key of the record
+     */
+    void invalidate(KEY key);
+
+    /**
+     * Drops all entries.
+     */
+    void invalidateAll();
+
+    /**
+     * Returns snapshot of cache counters.
+     * @return cache statistics
+     */
+    CacheStats stats();
+
+    /**
+     * Creates cache for the given options.
+     * @param options table options
+     * @param <K>     type of the key
+     * @param <R>     type of the record
+     * @return new cache
+     */
+    static <K, R extends AbstractRecord<K>> RecordCache<K, R> create(TableOptions options) {
+        return switch (options.getCachePolicy()) {
+            case UNBOUNDED -> new UnboundedRecordCache<>();
+            case LRU -> new LruRecordCache<>(options.getCacheMaxWeight(), options.getNegativeCacheSize());
+        };
+    }
+}
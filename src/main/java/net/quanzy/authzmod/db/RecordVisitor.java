@@ -0,0 +1,18 @@
+package net.quanzy.authzmod.db;
+
+/**
+ * Receives records of a {@link Table#scan(RecordVisitor)}.
+ *
+ * @param <RECORD> type of the record
+ */
+@FunctionalInterface
+public interface RecordVisitor<RECORD> {
+
+    /**
+     * Visits a record.
+     * @param record record view, valid only during the call
+     * @param offset offset of the record in the data file
+     * @return false to stop the scan
+     */
+    boolean visit(RECORD record, long offset);
+}
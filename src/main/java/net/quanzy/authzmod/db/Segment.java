@@ -0,0 +1,212 @@
+package net.quanzy.authzmod.db;
+
+import net.quanzy.authzmod.db.operations.BloomFilter;
+import net.quanzy.authzmod.db.operations.DataOperations;
+import net.quanzy.authzmod.db.operations.LoadedOffsets;
+import net.quanzy.authzmod.db.operations.MappedDataFile;
+import net.quanzy.authzmod.db.operations.MappedIndex;
+import net.quanzy.authzmod.db.operations.OffsetIndex;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sealed segment of a table: an immutable data file with its own index and bloom filter, read through
+ * a memory mapping. Files are named after the table data file, {@code <data>.seg.<id>} with
+ * {@code .idx} and {@code .bloom} next to it. Its index keeps tombstones, so deleted keys stay hidden
+ * in older segments.
+ *
+ * @param <KEY>    type of the key
+ * @param <RECORD> type of the record
+ */
+final class Segment<KEY, RECORD extends AbstractRecord<KEY>> {
+    static final String SUFFIX = ".seg.";
+    private static final Logger logger = LoggerFactory.getLogger(Segment.class);
+
+    private final long id;
+    private final File dataFile;
+    private final MappedDataFile data;
+    private final MappedIndex index;
+    @Nullable
+    private final BloomFilter filter;
+    private final DataOperations<RECORD, KEY> dataOperations;
+    /**
+     * Bytes taken by versions which newer segments replaced or deleted. Changed only under the table flush lock.
+     */
+    private volatile long garbageLength;
+
+    Segment(long id, File dataFile, MappedDataFile data, MappedIndex index, @Nullable BloomFilter filter,
+                    DataOperations<RECORD, KEY> dataOperations, long garbageLength) {
+        this.id = id;
+        this.dataFile = dataFile;
+        this.data = data;
+        this.index = index;
+        this.filter = filter;
+        this.dataOperations = dataOperations;
+        this.garbageLength = garbageLength;
+    }
+
+    static File dataFile(File tableFile, long id) {
+        return new File(tableFile.getAbsolutePath() + SUFFIX + id);
+    }
+
+    static File indexFile(File segmentFile) {
+        return new File(segmentFile.getAbsolutePath() + ".idx");
+    }
+
+    static File filterFile(File segmentFile) {
+        return new File(segmentFile.getAbsolutePath() + ".bloom");
+    }
+
+    /**
+     * Maps a segment, rebuilding its index or bloom filter if they are missing or do not match the data.
+     * A verified segment is truncated before its first corrupted record, which drops the records after it.
+     *
+     * @param tableFile         data file of the table
+     * @param id                segment number
+     * @param dataOperations    reads records of the segment
+     * @param falsePositiveRate false positive rate of the bloom filter, 0 for none
+     * @param garbageLength     bytes of the segment taken by replaced versions, from the manifest
+     * @param verify            check record checksums of the whole segment first
+     * @return the segment
+     * @throws IOException if the segment data file is missing or cannot be mapped
+     */
+    static <K, R extends AbstractRecord<K>> Segment<K, R> open(File tableFile, long id, DataOperations<R, K> dataOperations,
+                                                               double falsePositiveRate, long garbageLength,
+                                                               boolean verify) throws IOException {
+        File dataFile = dataFile(tableFile, id);
+        if (!dataFile.exists()) {
+            throw new IOException("Missing segment " + dataFile.getAbsolutePath());
+        }
+        if (verify) {
+            long valid = dataOperations.verify(dataFile);
+            if (valid < dataFile.length()) {
+                logger.warn("Truncating corrupted segment {} from {} to {} bytes", dataFile, dataFile.length(), valid);
+                try (FileChannel channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.WRITE)) {
+                    channel.truncate(valid);
+                }
+            }
+        }
+        MappedDataFile data = new MappedDataFile(dataFile);
+        data.remap();
+        File indexFile = indexFile(dataFile);
+        // headers are checked before mapping, a stale file is not mapped when it gets rewritten
+        MappedIndex index = null;
+        if (MappedIndex.readDataLength(indexFile) == data.getLength()) {
+            index = MappedIndex.open(indexFile);
+        }
+        if (index == null) {
+            logger.warn("Rebuilding index of segment {}", dataFile);
+            LoadedOffsets loaded = dataOperations.loadOffsets(dataFile, true, true);
+            MappedIndex.write(indexFile, loaded.getOffsets(), loaded.getDataLength(), loaded.getGarbageLength());
+            index = MappedIndex.open(indexFile);
+        }
+        BloomFilter filter = null;
+        if (falsePositiveRate > 0) {
+            File filterFile = filterFile(dataFile);
+            filter = BloomFilter.open(filterFile, index.getDataLength());
+            if (filter == null) {
+                BloomFilter rebuilt = BloomFilter.create(index.getEntryCount(), falsePositiveRate);
+                index.forEach((hash, offset) -> rebuilt.add(hash));
+                rebuilt.write(filterFile, index.getDataLength());
+                filter = rebuilt;
+            }
+        }
+        return new Segment<>(id, dataFile, data, index, filter, dataOperations, garbageLength);
+    }
+
+    /**
+     * Finds the version of the key stored in this segment.
+     *
+     * @return the record, a tombstone if the key was deleted, or null if the segment has no version of the key
+     */
+    @Nullable
+    RECORD find(KEY key) {
+        int hash = OffsetIndex.hash(key);
+        if (filter != null && !filter.mightContain(hash)) {
+            return null;
+        }
+        Object[] found = new Object[1];
+        index.get(hash, offset -> {
+            RECORD candidate = readAt(offset);
+            if (candidate != null && key.equals(candidate.getKey())) {
+                found[0] = candidate;
+                return true;
+            }
+            return false;
+        });
+        @SuppressWarnings("unchecked")
+        RECORD result = (RECORD) found[0];
+        return result;
+    }
+
+    /**
+     * Checks whether the record at the offset is the version of its key indexed in this segment.
+     */
+    boolean isIndexedAt(int hash, long offset) {
+        return index.get(hash, stored -> stored == offset) >= 0;
+    }
+
+    @Nullable
+    RECORD readAt(long offset) {
+        try {
+            ByteBuffer contents = data.recordAt(offset);
+            if (contents == null) {
+                return null;
+            }
+            RECORD record = dataOperations.readRecord(contents);
+            if (data.isTombstone(offset)) {
+                record.markTombstone();
+            }
+            return record;
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot map record at offset " + offset + " of segment " + dataFile, e);
+        }
+    }
+
+    long getId() {
+        return id;
+    }
+
+    MappedDataFile getData() {
+        return data;
+    }
+
+    MappedIndex getIndex() {
+        return index;
+    }
+
+    @Nullable
+    BloomFilter getFilter() {
+        return filter;
+    }
+
+    long length() {
+        return index.getDataLength();
+    }
+
+    long getGarbageLength() {
+        return garbageLength;
+    }
+
+    void addGarbage(long length) {
+        garbageLength += length;
+    }
+
+    /**
+     * Deletes files of the segment. Mappings stay readable until they are collected.
+     */
+    void deleteFiles() {
+        for (File file : new File[]{dataFile, indexFile(dataFile), filterFile(dataFile)}) {
+            if (file.exists() && !file.delete()) {
+                logger.warn("Cannot delete segment file {}", file.getAbsolutePath());
+            }
+        }
+    }
+}
@@ -1,41 +1,175 @@
-
 package net.quanzy.authzmod.db
 
+import java.nio.BufferUnderflowException
 import java.nio.ByteBuffer
+import java.util.UUID
 
 /**
  * Generic serializer interface for serializing and deserializing values.
+ * Values can be written straight into a caller's buffer, sized with [serializedSize], without allocating.
  */
 sealed interface Serializers<KEY> {
-    fun serialize(value: KEY): ByteBuffer
+    /**
+     * Reads a value at the position of the buffer and advances it.
+     *
+     * @throws BufferUnderflowException if the buffer ends before the value, also when a length prefix is corrupted
+     */
     fun read(buffer: ByteBuffer): KEY
+
+    /**
+     * Number of bytes [write] puts into the buffer for the value.
+     */
+    fun serializedSize(value: KEY): Int
+
+    /**
+     * Writes the value at the position of the buffer and advances it.
+     */
+    fun write(value: KEY, target: ByteBuffer)
+
+    fun serialize(value: KEY): ByteBuffer {
+        val buffer = ByteBuffer.allocate(serializedSize(value))
+        write(value, buffer)
+        return buffer.flip()
+    }
 }
 
 @Suppress("UNCHECKED_CAST")
 fun<K> findSerializerForClass(klazz: Class<K>): Serializers<K> {
     return when (klazz) {
         String::class.java -> StringSerializer() as Serializers<K>
+        UUID::class.java -> UuidSerializer() as Serializers<K>
+        Long::class.javaObjectType, Long::class.javaPrimitiveType -> LongSerializer() as Serializers<K>
+        Int::class.javaObjectType, Int::class.javaPrimitiveType -> IntSerializer() as Serializers<K>
+        ByteArray::class.java -> ByteArraySerializer() as Serializers<K>
         else -> throw IllegalArgumentException("No serializer found for class: ${klazz.name}")
     }
 }
 
 /**
- * String serializer implementation.
+ * String serializer implementation: length-prefixed UTF-8.
+ * Unpaired surrogates are written as `?`, like [String.toByteArray] does.
  */
 class StringSerializer: Serializers<String> {
     override fun read(buffer: ByteBuffer): String {
-        val size = buffer.int
+        val size = readLength(buffer)
+        if (buffer.hasArray()) {
+            val value = String(buffer.array(), buffer.arrayOffset() + buffer.position(), size, Charsets.UTF_8)
+            buffer.position(buffer.position() + size)
+            return value
+        }
         val bytes = ByteArray(size)
         buffer.get(bytes)
-        return String(bytes)
+        return String(bytes, Charsets.UTF_8)
+    }
+
+    override fun serializedSize(value: String): Int = Integer.BYTES + encodedLength(value)
+
+    override fun write(value: String, target: ByteBuffer) {
+        target.putInt(encodedLength(value))
+        var i = 0
+        while (i < value.length) {
+            val c = value[i++]
+            when {
+                c.code < 0x80 -> target.put(c.code.toByte())
+                c.code < 0x800 -> target.put((0xC0 or (c.code shr 6)).toByte()).put(continuation(c.code))
+                c.isHighSurrogate() && i < value.length && value[i].isLowSurrogate() -> {
+                    val codePoint = Character.toCodePoint(c, value[i++])
+                    target.put((0xF0 or (codePoint shr 18)).toByte())
+                        .put(continuation(codePoint shr 12))
+                        .put(continuation(codePoint shr 6))
+                        .put(continuation(codePoint))
+                }
+                c.isSurrogate() -> target.put('?'.code.toByte())
+                else -> target.put((0xE0 or (c.code shr 12)).toByte())
+                    .put(continuation(c.code shr 6))
+                    .put(continuation(c.code))
+            }
+        }
+    }
+
+    private fun continuation(bits: Int): Byte = (0x80 or (bits and 0x3F)).toByte()
+
+    private fun encodedLength(value: String): Int {
+        var length = 0
+        var i = 0
+        while (i < value.length) {
+            val c = value[i++]
+            length += when {
+                c.code < 0x80 -> 1
+                c.code < 0x800 -> 2
+                c.isHighSurrogate() && i < value.length && value[i].isLowSurrogate() -> { i++; 4 }
+                c.isSurrogate() -> 1
+                else -> 3
+            }
+        }
+        return length
     }
+}
+
+/**
+ * UUID serializer: most and then least significant 64 bits.
+ */
+class UuidSerializer: Serializers<UUID> {
+    override fun read(buffer: ByteBuffer): UUID = UUID(buffer.long, buffer.long)
+
+    override fun serializedSize(value: UUID): Int = 2 * Long.SIZE_BYTES
+
+    override fun write(value: UUID, target: ByteBuffer) {
+        target.putLong(value.mostSignificantBits).putLong(value.leastSignificantBits)
+    }
+}
+
+/**
+ * Long serializer: 8 bytes, big-endian.
+ */
+class LongSerializer: Serializers<Long> {
+    override fun read(buffer: ByteBuffer): Long = buffer.long
+
+    override fun serializedSize(value: Long): Int = Long.SIZE_BYTES
 
-    override fun serialize(value: String): ByteBuffer {
-        val bytes = value.toByteArray()
-        val buffer = ByteBuffer.allocate(Integer.BYTES + bytes.size)
-        buffer.putInt(bytes.size)
-        buffer.put(bytes)
-        buffer.flip()
-        return buffer
+    override fun write(value: Long, target: ByteBuffer) {
+        target.putLong(value)
     }
-}
\ No newline at end of file
+}
+
+/**
+ * Int serializer: 4 bytes, big-endian.
+ */
+class IntSerializer: Serializers<Int> {
+    override fun read(buffer: ByteBuffer): Int = buffer.int
+
+    override fun serializedSize(value: Int): Int = Int.SIZE_BYTES
+
+    override fun write(value: Int, target: ByteBuffer) {
+        target.putInt(value)
+    }
+}
+
+/**
+ * Raw bytes serializer: length-prefixed, like [StringSerializer] without decoding.
+ * Arrays compare by identity, so they are fit for record fields but not for table keys.
+ */
+class ByteArraySerializer: Serializers<ByteArray> {
+    override fun read(buffer: ByteBuffer): ByteArray {
+        val bytes = ByteArray(readLength(buffer))
+        buffer.get(bytes)
+        return bytes
+    }
+
+    override fun serializedSize(value: ByteArray): Int = Integer.BYTES + value.size
+
+    override fun write(value: ByteArray, target: ByteBuffer) {
+        target.putInt(value.size).put(value)
+    }
+}
+
+/**
+ * Reads a length prefix, checked against the rest of the buffer before anything is allocated for it.
+ */
+private fun readLength(buffer: ByteBuffer): Int {
+    val length = buffer.int
+    if (length < 0 || length > buffer.remaining()) {
+        throw BufferUnderflowException()
+    }
+    return length
+}
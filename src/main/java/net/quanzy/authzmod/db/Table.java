@@ -1,154 +1,2101 @@
 package net.quanzy.authzmod.db;
 
+import net.quanzy.authzmod.db.operations.BloomFilter;
 import net.quanzy.authzmod.db.operations.DataOperations;
+import net.quanzy.authzmod.db.operations.EntryConsumer;
 import net.quanzy.authzmod.db.operations.FlushResult;
+import net.quanzy.authzmod.db.operations.FlushThrottle;
+import net.quanzy.authzmod.db.operations.HashedOffsets;
+import net.quanzy.authzmod.db.operations.IndexDelta;
 import net.quanzy.authzmod.db.operations.IndexOperations;
+import net.quanzy.authzmod.db.operations.LoadedOffsets;
+import net.quanzy.authzmod.db.operations.MappedDataFile;
+import net.quanzy.authzmod.db.operations.MappedIndex;
+import net.quanzy.authzmod.db.operations.OffsetIndex;
+import net.quanzy.authzmod.db.operations.SegmentManifest;
+import net.quanzy.authzmod.db.operations.WriteAheadLog;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongPredicate;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.stream.IntStream;
 
 /**
  * Simple file-based table storing records with a key.
+ * <p>
+ * The data file is append-only: an update appends the new version of a record and a delete appends
+ * a tombstone, while the index points at the latest version of every live key. Replaced versions and
+ * tombstones stay in the file as garbage until {@link #compact()} rewrites it.
+ * <p>
+ * With {@link TableOptions#segmentSize(long)} set, a data file which grew past the size is sealed together with
+ * its index and bloom filter as an immutable {@link Segment}, and a new data file is started. Sealed segments are
+ * listed in a {@link SegmentManifest}, searched from newest to oldest after the data file and compacted one by one.
+ * Indexes keep tombstones then, so a deleted key stays hidden in older segments.
  *
  * @param <KEY>    type of the key
  * @param <RECORD> type of the record
  */
-public class Table<KEY, RECORD extends AbstractRecord<KEY>> {
-    private final File dataFile;
-    private final File indexFile;
-    private final ConcurrentHashMap<KEY, RECORD> newRecords = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<KEY, RECORD> cache = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<KEY, Long> keyOffsets = new ConcurrentHashMap<>();
+public class Table<KEY, RECORD extends AbstractRecord<KEY>> implements Closeable {
+    /**
+     * Path the table was opened with. Names the first generation of the data file and every other table file.
+     */
+    private final File tableFile;
+    /**
+     * Files of the current generation, replaced together by a compaction under the swap lock.
+     * Each compaction writes a new generation and each rewrite of the index a new version of the index and
+     * bloom filter files, so a file which may still be mapped is never renamed over.
+     */
+    private volatile File dataFile;
+    private volatile File indexFile;
+    private volatile File filterFile;
+    private volatile IndexDelta deltaFile;
+    private long generation;
+    private long indexVersion;
+    private final SegmentManifest manifest;
+    /**
+     * Records added since the last flush started. Swapped for an empty map when a flush starts.
+     */
+    private volatile ConcurrentHashMap<KEY, RECORD> newRecords = new ConcurrentHashMap<>();
+    /**
+     * Records being written by the running flush, or left by a failed one, until they are indexed.
+     */
+    private volatile ConcurrentHashMap<KEY, RECORD> flushingRecords = new ConcurrentHashMap<>();
+    /**
+     * Held shared by writers between their checks and insert, and exclusively by a flush only to swap maps,
+     * so writers never wait for flush I/O.
+     */
+    private final ReentrantReadWriteLock swapLock = new ReentrantReadWriteLock();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final LongAdder newRecordsBytes = new LongAdder();
+    private final FlushThrottle flushThrottle;
+    private final FlushThrottle compactionThrottle;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private ScheduledExecutorService flusher;
+    /**
+     * Executor of asynchronous lookups started by the table on first use, null if the options supply one.
+     */
+    private ExecutorService ownLookupExecutor;
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong flushFailures = new AtomicLong();
+    private final AtomicLong recordsWritten = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong totalFlushNanos = new AtomicLong();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+    private final AtomicLong compactionCount = new AtomicLong();
+    private final AtomicLong bytesCompacted = new AtomicLong();
+    private volatile MappedIndex keyOffsets;
+    /**
+     * Entries flushed since {@link #keyOffsets} was written, also kept in {@link #deltaFile} and probed before
+     * the index file. Never changed once published, a flush publishes a copy with its entries. Replaced by
+     * an empty one right after {@link #keyOffsets} when the two are merged, so a lookup which reads the delta
+     * first misses no entry. Holds tombstones of keys in the index file even if indexes drop tombstones.
+     */
+    private volatile OffsetIndex indexDelta = new OffsetIndex();
+    /**
+     * Number of entries the index would have with the delta merged into it.
+     */
+    private volatile int indexEntries;
+    /**
+     * Bloom filter over keys of {@link #keyOffsets}, null if disabled. Published before the index it was built from.
+     * Keys of {@link #indexDelta} are not in it.
+     */
+    private volatile BloomFilter keyFilter;
     private final IndexOperations<KEY> indexOperations;
     private final DataOperations<RECORD, KEY> dataOperations;
+    private final TableOptions options;
+    /**
+     * Replaced by compaction before {@link #keyOffsets}, so a lookup which sees the compacted index also sees its data.
+     */
+    private volatile MappedDataFile mappedData;
+    private final RecordCache<KEY, RECORD> cache;
+    private WriteAheadLog writeAheadLog;
+    private volatile long committedLength;
+    /**
+     * Bytes of committed data taken by replaced versions and tombstones.
+     */
+    private volatile long garbageLength;
+    /**
+     * Sealed segments, newest first. Replaced only under the flush lock, and published before the index of
+     * the data file, so a lookup which reads it after {@link #keyOffsets} misses no sealed record.
+     */
+    private volatile List<Segment<KEY, RECORD>> segments = List.of();
+    private long nextSegmentId;
+    /**
+     * Sorted live keys, flushed or pending, null unless {@link TableOptions#orderedIndex(boolean)} is set.
+     * Keys are added with their record and removed once their tombstone is flushed, so the set may briefly hold
+     * deleted keys, which lookups skip, but never misses a live one.
+     */
+    private final ConcurrentSkipListSet<KEY> orderedKeys;
+    private final Class<KEY> keyClass;
     private boolean readOnly = false;
     private static final Logger logger = LoggerFactory.getLogger(Table.class);
+    private static final String COMPACT_SUFFIX = ".compact";
+    private static final String GENERATION_SUFFIX = ".gen.";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String FILTER_SUFFIX = ".bloom";
+    /**
+     * Fewest delta entries which get merged into the index file, so small tables do not rewrite it on every flush.
+     */
+    private static final int MIN_DELTA_MERGE = 4096;
+
+    /**
+     * Private constructor to enforce the use of the factory method.
+     */
+    private Table(File dataFile, Function<ByteBuffer, RECORD> recordFactory, Class<KEY> keyKlazz, TableOptions options) {
+        this.tableFile = dataFile;
+        useGeneration(0);
+        this.manifest = new SegmentManifest(new File(dataFile.getAbsolutePath() + ".segments"));
+        this.indexOperations = new IndexOperations<>(keyKlazz);
+        this.keyClass = keyKlazz;
+        if (options.isOrderedIndex() && !Comparable.class.isAssignableFrom(keyKlazz)) {
+            throw new IllegalArgumentException("Ordered index needs comparable keys: " + keyKlazz.getName());
+        }
+        this.orderedKeys = options.isOrderedIndex() ? new ConcurrentSkipListSet<>() : null;
+        this.dataOperations = new DataOperations<>(recordFactory);
+        this.options = options;
+        this.mappedData = options.getReadMode() == TableOptions.ReadMode.MAPPED ? new MappedDataFile(dataFile) : null;
+        this.cache = RecordCache.create(options);
+        this.flushThrottle = options.getFlushBytesPerSecond() > 0 ? new FlushThrottle(options.getFlushBytesPerSecond()) : null;
+        this.compactionThrottle = options.getCompactionBytesPerSecond() > 0
+                ? new FlushThrottle(options.getCompactionBytesPerSecond()) : null;
+    }
+
+    /**
+     * Points the table at the files of a generation of the data file, the first one has the table path,
+     * and at the newest version of its index.
+     */
+    private void useGeneration(long generation) {
+        useGeneration(generation, latestIndexVersion(generationFile(generation)));
+    }
+
+    private void useGeneration(long generation, long indexVersion) {
+        this.generation = generation;
+        this.dataFile = generationFile(generation);
+        this.deltaFile = new IndexDelta(deltaFile(dataFile));
+        useIndexVersion(indexVersion);
+    }
+
+    /**
+     * Points the table at a version of the index and bloom filter files, {@code <data>.idx.<version>} and
+     * {@code <data>.bloom.<version>}. Version 0 names the files without a number, written before versions.
+     */
+    private void useIndexVersion(long version) {
+        this.indexVersion = version;
+        this.indexFile = versionFile(dataFile, INDEX_SUFFIX, version);
+        this.filterFile = versionFile(dataFile, FILTER_SUFFIX, version);
+    }
+
+    private File generationFile(long generation) {
+        return generation == 0 ? tableFile : new File(tableFile.getAbsolutePath() + GENERATION_SUFFIX + generation);
+    }
+
+    private static File versionFile(File data, String suffix, long version) {
+        return new File(data.getAbsolutePath() + suffix + (version == 0 ? "" : "." + version));
+    }
+
+    private static File deltaFile(File data) {
+        return new File(data.getAbsolutePath() + INDEX_SUFFIX + ".delta");
+    }
+
+    /**
+     * Lists the index and bloom filter files of a data file in every version, with the index delta and
+     * temporary files left by an interrupted write.
+     */
+    private static File[] indexFiles(File data) {
+        String index = data.getName() + INDEX_SUFFIX;
+        String filter = data.getName() + FILTER_SUFFIX;
+        File[] files = data.getAbsoluteFile().getParentFile()
+                .listFiles((dir, name) -> name.startsWith(index) || name.startsWith(filter));
+        return files == null ? new File[0] : files;
+    }
+
+    /**
+     * Finds the newest index version of a data file. A version is written under a temporary name and renamed
+     * when complete, the index before its filter, so the highest number is the last index written.
+     */
+    private static long latestIndexVersion(File data) {
+        long latest = 0;
+        for (File file : indexFiles(data)) {
+            String name = file.getName();
+            try {
+                latest = Math.max(latest, Long.parseLong(name.substring(name.lastIndexOf('.') + 1)));
+            } catch (NumberFormatException e) {
+                // the delta, a temporary file or a file without a version
+            }
+        }
+        return latest;
+    }
+
+    boolean fileExists() {
+        return dataFile.exists() && dataFile.canWrite();
+    }
+
+    boolean indexExists() {
+        return indexFile.exists() && indexFile.canRead();
+    }
+
+    File getIndexFile() {
+        return indexFile;
+    }
+
+    File getFilterFile() {
+        return filterFile;
+    }
+
+    void delete() {
+        if (writeAheadLog != null) {
+            writeAheadLog.delete();
+        }
+        for (Segment<KEY, RECORD> segment : segments) {
+            segment.deleteFiles();
+        }
+        manifest.delete();
+        if (!dataFile.delete()) {
+            throw new RuntimeException("Cannot delete db file " + dataFile.getAbsolutePath());
+        }
+        for (File file : indexFiles(dataFile)) {
+            if (!file.delete()) {
+                throw new RuntimeException("Cannot delete index file " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Checks record checksums of all flushed data, sealed segments included, streaming the files through
+     * memory mappings. Nothing is repaired, see {@link TableOptions#verifyOnOpen(boolean)} for that.
+     * Records written before checksums were added are not checked.
+     *
+     * @return true if no flushed record is corrupted
+     * @throws IOException if a data file cannot be read
+     */
+    public boolean verify() throws IOException {
+        long start = System.nanoTime();
+        boolean intact = true;
+        // no seal or compaction swaps files in the meantime
+        flushLock.lock();
+        try {
+            for (Segment<KEY, RECORD> segment : segments) {
+                long valid = segment.getData().scan(0, segment.length(), (offset, contents, tombstone) -> true);
+                if (valid < segment.length()) {
+                    logger.error("Segment {} of {} is corrupted at offset {}", segment.getId(), dataFile, valid);
+                    intact = false;
+                }
+            }
+            long valid = dataOperations.verify(dataFile);
+            if (valid < committedLength) {
+                logger.error("Data file {} is corrupted at offset {}", dataFile, valid);
+                intact = false;
+            }
+        } finally {
+            flushLock.unlock();
+        }
+        logger.info("Verified {} in {} ms", dataFile, (System.nanoTime() - start) / 1_000_000);
+        return intact;
+    }
+
+    long size() {
+        long size = dataFile.length();
+        for (Segment<KEY, RECORD> segment : segments) {
+            size += segment.length();
+        }
+        return size;
+    }
+
+    long records() {
+        return newRecords.size() + flushingRecords.size();
+    }
+
+    long idxSize() {
+        long entries = keyOffsets == null ? 0 : indexEntries;
+        for (Segment<KEY, RECORD> segment : segments) {
+            entries += segment.getIndex().getEntryCount();
+        }
+        return entries;
+    }
+
+    void readRecords(boolean fillIndex) throws IOException {
+        dataOperations.readData(dataFile).iterator().forEachRemaining(
+                result -> {
+                    RECORD record = result.getRecord();
+                    if (record.isTombstone()) {
+                        newRecords.remove(record.getKey());
+                    } else {
+                        newRecords.put(record.getKey(), record);
+                        newRecordsBytes.add(record.getSize());
+                    }
+                }
+        );
+        if (fillIndex) {
+            rebuildIndex();
+        }
+    }
+
+    /**
+     * Rebuilds the index from the data file in parallel and truncates it before a torn or corrupted record.
+     */
+    void rebuildIndex() throws IOException {
+        long start = System.nanoTime();
+        LoadedOffsets loaded = dataOperations.loadOffsets(dataFile, true, keepTombstones());
+        logger.info("Rebuilt index of {} with {} entries in {} ms",
+                dataFile, loaded.getOffsets().size(), (System.nanoTime() - start) / 1_000_000);
+        truncateData(loaded.getDataLength());
+        garbageLength = loaded.getGarbageLength();
+        writeIndex(loaded.getOffsets());
+    }
+
+    void readIndex() throws IOException {
+        if (!MappedIndex.isMappedIndex(indexFile)) {
+            OffsetIndex offsets = indexOperations.loadOffsets(indexFile, true);
+            logger.info("Converting index file {} with {} entries to mapped format", indexFile, offsets.size());
+            writeIndex(offsets);
+        } else {
+            keyOffsets = MappedIndex.open(indexFile);
+            committedLength = keyOffsets.getDataLength();
+            garbageLength = keyOffsets.getGarbageLength();
+            indexEntries = keyOffsets.getEntryCount();
+            readDelta();
+            if (options.isVerifyOnOpen()
+                    && dataOperations.verify(dataFile) < Math.min(committedLength, dataFile.length())) {
+                logger.warn("Data file {} is corrupted before the committed length {}, rebuilding the index",
+                        dataFile, committedLength);
+                rebuildIndex();
+            } else if (dataFile.length() > committedLength) {
+                recoverUncommittedData();
+            } else {
+                readFilter();
+            }
+        }
+    }
+
+    /**
+     * Loads entries flushed after the index file was written from the index delta.
+     */
+    private void readDelta() throws IOException {
+        OffsetIndex delta = new OffsetIndex();
+        IndexDelta.Coverage coverage = deltaFile.read(keyOffsets.getDataLength(),
+                (hash, offset) -> delta.put(hash, offset, stored -> isSameKeyAt(stored, offset)));
+        if (coverage != null) {
+            logger.info("Loaded {} entries of index {} from its delta", delta.size(), indexFile);
+            committedLength = coverage.getDataLength();
+            garbageLength = coverage.getGarbageLength();
+            indexEntries = coverage.getEntryCount();
+        }
+        indexDelta = delta;
+    }
+
+    /**
+     * Maps the bloom filter file, or rebuilds it from the index if it is missing or was written for other data.
+     */
+    private void readFilter() throws IOException {
+        if (options.getBloomFilterFalsePositiveRate() == 0) {
+            return;
+        }
+        long dataLength = keyOffsets.getDataLength();
+        BloomFilter filter = BloomFilter.open(filterFile, dataLength);
+        if (filter == null) {
+            logger.info("Rebuilding bloom filter {} from the index", filterFile);
+            filter = writeFilter(filterFile, keyOffsets.getEntryCount(), keyOffsets::forEach, dataLength);
+        }
+        keyFilter = filter;
+    }
+
+    /**
+     * Indexes complete records written after the last committed flush and truncates a torn or corrupted last record.
+     */
+    private void recoverUncommittedData() throws IOException {
+        logger.warn("Data file {} has {} bytes past the committed length {}",
+                dataFile, dataFile.length() - committedLength, committedLength);
+        OffsetIndex offsets = mergedOffsets(keyOffsets, indexDelta);
+        long[] end = {committedLength};
+        long[] garbage = {garbageLength};
+        int[] recovered = new int[1];
+        boolean[] tombstones = new boolean[1];
+        dataOperations.readData(dataFile, committedLength).iterator().forEachRemaining(result -> {
+            RECORD record = result.getRecord();
+            KEY key = record.getKey();
+            long replaced = offsets.put(OffsetIndex.hash(key), result.getOffset(), offset -> isKeyAt(key, offset));
+            if (replaced >= 0) {
+                garbage[0] += frameLength(replaced);
+            }
+            tombstones[0] |= record.isTombstone();
+            recovered[0]++;
+            end[0] = result.getEnd();
+        });
+        logger.warn("Recovered {} uncommitted records", recovered[0]);
+        truncateData(end[0]);
+        OffsetIndex live = !tombstones[0] || keepTombstones() ? offsets : offsets.filter(offset -> {
+            RECORD record = readRecordAt(offset);
+            if (record != null && record.isTombstone()) {
+                garbage[0] += frameLength(offset);
+                return false;
+            }
+            return true;
+        });
+        garbageLength = garbage[0];
+        writeIndex(live);
+    }
+
+    /**
+     * Checks whether indexes keep tombstones, which they do once the table is segmented.
+     */
+    private boolean keepTombstones() {
+        return options.getSegmentSize() > 0 || !segments.isEmpty();
+    }
+
+    private void truncateData(long length) throws IOException {
+        long size = dataFile.length();
+        if (size > length) {
+            logger.warn("Truncating data file {} from {} to {} bytes", dataFile, size, length);
+            cutData(length);
+        }
+        committedLength = length;
+    }
+
+    /**
+     * Cuts the data file at the length, through the mapping if there is one, so it drops the part cut off first.
+     */
+    private void cutData(long length) throws IOException {
+        MappedDataFile data = mappedData;
+        if (data != null) {
+            data.truncate(length);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(length);
+        }
+    }
+
+    public Optional<RECORD> getRecordLazily(KEY key)  {
+        // a flush publishes the index before it drops flushed records, so checking in this order misses nothing
+        RECORD result = getPending(key);
+        if (result == null) {
+            // the filter is published after segments, so an empty segment list read after it is current
+            if (!mightBeIndexed(key) && segments.isEmpty()) {
+                return Optional.empty();
+            }
+            result = cache.get(key, this::readRecordByOffset);
+        } else if (result.isTombstone()) {
+            // deleted but not flushed yet
+            result = null;
+        }
+        return Optional.ofNullable(result);
+    }
+
+    /**
+     * Looks up the record without blocking the caller on I/O. Records which are pending, cached or rejected
+     * by the bloom filter are answered right away with a completed future, other lookups run on the lookup
+     * executor, see {@link TableOptions#lookupExecutor(Executor)}.
+     *
+     * @param key key of the record
+     * @return future completed with the result of {@link #getRecordLazily(Object)}, or failed with
+     * {@link RejectedExecutionException} if the executor does not accept the lookup
+     */
+    public CompletableFuture<Optional<RECORD>> getRecordAsync(KEY key) {
+        RECORD pending = getPending(key);
+        if (pending != null) {
+            return CompletableFuture.completedFuture(pending.isTombstone() ? Optional.empty() : Optional.of(pending));
+        }
+        if (!mightBeIndexed(key) && segments.isEmpty()) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        RECORD cached = cache.getIfPresent(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(Optional.of(cached));
+        }
+        try {
+            return CompletableFuture.supplyAsync(() -> getRecordLazily(key), lookupExecutor());
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Looks up many keys on the lookup executor, see {@link #getRecords(Collection)}.
+     *
+     * @param keys keys to look up
+     * @return future completed with records found for the keys, or failed with
+     * {@link RejectedExecutionException} if the executor does not accept the lookup
+     */
+    public CompletableFuture<Map<KEY, RECORD>> getRecordsAsync(Collection<KEY> keys) {
+        try {
+            return CompletableFuture.supplyAsync(() -> getRecords(keys), lookupExecutor());
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private Executor lookupExecutor() {
+        Executor executor = options.getLookupExecutor();
+        if (executor != null) {
+            return executor;
+        }
+        synchronized (this) {
+            if (ownLookupExecutor == null) {
+                ownLookupExecutor = newLookupExecutor("table-lookup-" + tableFile.getName());
+            }
+            return ownLookupExecutor;
+        }
+    }
+
+    /**
+     * Starts an executor with a virtual thread per lookup on JDK 21 and later, so lookups blocked on I/O
+     * hold no platform thread, or else a pool of daemon threads.
+     */
+    private static ExecutorService newLookupExecutor(String name) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            return Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+                Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Looks up many keys at once. Cached records are returned right away, offsets of the other keys are resolved
+     * in one pass over the index and read in file order: through the mapping, or with positional reads that
+     * cover neighbouring records together when the table reads through a channel.
+     *
+     * @param keys keys to look up
+     * @return records found for the keys, absent and deleted keys are left out
+     */
+    public Map<KEY, RECORD> getRecords(Collection<KEY> keys) {
+        Map<KEY, RECORD> result = new HashMap<>(keys.size() * 4 / 3 + 1);
+        Set<KEY> flushed = new HashSet<>();
+        for (KEY key : keys) {
+            RECORD pending = getPending(key);
+            if (pending == null) {
+                flushed.add(key);
+            } else if (!pending.isTombstone()) {
+                result.put(key, pending);
+            }
+        }
+        if (!flushed.isEmpty()) {
+            result.putAll(cache.getAll(flushed, this::readRecordsByOffset));
+        }
+        return result;
+    }
+
+    @Nullable
+    private RECORD getPending(KEY key) {
+        RECORD result = newRecords.get(key);
+        return result != null ? result : flushingRecords.get(key);
+    }
+
+    /**
+     * Reads the live record for the key from the data file or sealed segments.
+     */
+    @Nullable
+    private RECORD readRecordByOffset(KEY key) {
+        RECORD version = findVersion(key);
+        return version == null || version.isTombstone() ? null : version;
+    }
+
+    /**
+     * Finds the latest flushed version of the key, checking every offset stored under the key hash in the index
+     * delta and the index of the data file, then sealed segments from newest to oldest.
+     * Runs without locks, so a compaction or a seal may swap the data file under a lookup. The lookup is then
+     * repeated against the new index.
+     *
+     * @return the record, a tombstone if the key was deleted, or null if no version was flushed
+     */
+    @Nullable
+    private RECORD findVersion(KEY key) {
+        int hash = OffsetIndex.hash(key);
+        OffsetIndex delta = indexDelta;
+        BloomFilter filter = keyFilter;
+        MappedIndex index = keyOffsets;
+        if (index != null) {
+            Object[] found = new Object[1];
+            LongPredicate matches = offset -> {
+                RECORD candidate = readRecordAt(offset);
+                if (candidate != null && key.equals(candidate.getKey())) {
+                    found[0] = candidate;
+                    return true;
+                }
+                return false;
+            };
+            try {
+                if (delta.get(hash, matches) < 0 && (filter == null || filter.mightContain(hash))) {
+                    index.get(hash, matches);
+                }
+            } catch (RuntimeException e) {
+                // offsets of a replaced index may point into the middle of a compacted record
+                if (index == keyOffsets && delta == indexDelta) {
+                    throw e;
+                }
+            }
+            if (found[0] == null && (index != keyOffsets || delta != indexDelta)) {
+                return findVersion(key);
+            }
+            if (found[0] != null) {
+                @SuppressWarnings("unchecked")
+                RECORD result = (RECORD) found[0];
+                return result;
+            }
+        }
+        for (Segment<KEY, RECORD> segment : segments) {
+            RECORD version = segment.find(key);
+            if (version != null) {
+                return version;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads live records of the keys from the data file, then from sealed segments from newest to oldest.
+     * The index, the data and the segments are taken together, so a compaction or a seal running meanwhile
+     * does not affect the lookup.
+     */
+    private Map<KEY, RECORD> readRecordsByOffset(Collection<KEY> keys) {
+        OffsetIndex delta;
+        MappedIndex index;
+        MappedDataFile data;
+        BloomFilter filter;
+        List<Segment<KEY, RECORD>> sealed;
+        FileChannel opened = null;
+        swapLock.readLock().lock();
+        try {
+            delta = indexDelta;
+            index = keyOffsets;
+            data = mappedData;
+            filter = keyFilter;
+            sealed = segments;
+            if (data == null && index != null) {
+                // an open channel keeps reading the data file which was indexed, even once a compaction deletes it
+                opened = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot open db file " + dataFile.getAbsolutePath(), e);
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        Map<KEY, RECORD> found = new HashMap<>(keys.size() * 4 / 3 + 1);
+        List<KEY> remaining = new ArrayList<>(keys);
+        try (FileChannel channel = opened) {
+            if (index != null) {
+                MappedDataFile mapped = data;
+                BatchReader<RECORD> reader = offsets -> mapped != null
+                        ? readRecordsAt(mapped, offsets) : dataOperations.readRecords(channel, offsets);
+                remaining = readVersions(remaining, delta, null, found, reader);
+                remaining = readVersions(remaining, index, filter, found, reader);
+            }
+            for (Segment<KEY, RECORD> segment : sealed) {
+                if (remaining.isEmpty()) {
+                    break;
+                }
+                remaining = readVersions(remaining, segment.getIndex(), segment.getFilter(), found,
+                        offsets -> readRecordsAt(segment.getData(), offsets));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read records of " + dataFile.getAbsolutePath(), e);
+        }
+        found.values().removeIf(AbstractRecord::isTombstone);
+        return found;
+    }
+
+    /**
+     * Reads records at sorted offsets.
+     */
+    @FunctionalInterface
+    private interface BatchReader<RECORD> {
+        List<RECORD> read(long[] offsets) throws IOException;
+    }
+
+    /**
+     * Collects every offset stored under the hashes of the keys, reads them in file order and keeps
+     * the versions whose key matches, tombstones included.
+     *
+     * @return keys without a version in the index
+     */
+    private List<KEY> readVersions(List<KEY> keys, HashedOffsets index, @Nullable BloomFilter filter,
+                                   Map<KEY, RECORD> found, BatchReader<RECORD> reader) throws IOException {
+        long[][] offsets = {new long[keys.size()]};
+        int[][] owners = {new int[keys.size()]};
+        int[] count = new int[1];
+        for (int i = 0; i < keys.size(); i++) {
+            int hash = OffsetIndex.hash(keys.get(i));
+            if (filter != null && !filter.mightContain(hash)) {
+                continue;
+            }
+            int owner = i;
+            index.get(hash, offset -> {
+                if (count[0] == offsets[0].length) {
+                    offsets[0] = Arrays.copyOf(offsets[0], count[0] * 2);
+                    owners[0] = Arrays.copyOf(owners[0], count[0] * 2);
+                }
+                offsets[0][count[0]] = offset;
+                owners[0][count[0]++] = owner;
+                // keep probing, colliding hashes are told apart once the records are read
+                return false;
+            });
+        }
+        int[] order = offsetOrder(offsets[0], count[0]);
+        long[] sorted = new long[count[0]];
+        for (int i = 0; i < count[0]; i++) {
+            sorted[i] = offsets[0][order[i]];
+        }
+        List<RECORD> records = reader.read(sorted);
+        for (int i = 0; i < count[0]; i++) {
+            RECORD record = records.get(i);
+            KEY key = keys.get(owners[0][order[i]]);
+            if (record != null && key.equals(record.getKey())) {
+                found.put(key, record);
+            }
+        }
+        List<KEY> remaining = new ArrayList<>();
+        for (KEY key : keys) {
+            if (!found.containsKey(key)) {
+                remaining.add(key);
+            }
+        }
+        return remaining;
+    }
+
+    private List<RECORD> readRecordsAt(MappedDataFile data, long[] offsets) throws IOException {
+        List<RECORD> records = new ArrayList<>(offsets.length);
+        for (long offset : offsets) {
+            ByteBuffer contents = data.recordAt(offset);
+            RECORD record = contents == null ? null : dataOperations.readRecord(contents);
+            if (record != null && data.isTombstone(offset)) {
+                record.markTombstone();
+            }
+            records.add(record);
+        }
+        return records;
+    }
+
+    private boolean isIndexed(KEY key) {
+        return readRecordByOffset(key) != null;
+    }
+
+    /**
+     * Checks the bloom filter, false means the key is definitely not in the index.
+     */
+    private boolean mightBeIndexed(KEY key) {
+        int hash = OffsetIndex.hash(key);
+        // keys flushed since the filter was written are only in the delta
+        if (indexDelta.get(hash, offset -> true) >= 0) {
+            return true;
+        }
+        BloomFilter filter = keyFilter;
+        return filter == null || filter.mightContain(hash);
+    }
+
+    private boolean isKeyAt(KEY key, long offset) {
+        RECORD candidate = readRecordAt(offset);
+        return candidate != null && key.equals(candidate.getKey());
+    }
+
+    private boolean isSameKeyAt(long offset, long other) {
+        RECORD record = readRecordAt(other);
+        return record != null && isKeyAt(record.getKey(), offset);
+    }
+
+    private boolean isTombstoneAt(long offset) {
+        RECORD record = readRecordAt(offset);
+        return record != null && record.isTombstone();
+    }
+
+    private long frameLength(long offset) {
+        MappedDataFile data = mappedData;
+        try {
+            if (data != null) {
+                return data.frameLength(offset);
+            }
+            try (FileChannel channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ)) {
+                return dataOperations.frameLength(channel, offset);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read record at offset " + offset, e);
+        }
+    }
+
+    @Nullable
+    private RECORD readRecordAt(long offset) {
+        MappedDataFile data = mappedData;
+        if (data != null) {
+            try {
+                ByteBuffer recordBuffer = data.recordAt(offset);
+                if (recordBuffer == null) {
+                    return null;
+                }
+                RECORD record = dataOperations.readRecord(recordBuffer);
+                if (data.isTombstone(offset)) {
+                    record.markTombstone();
+                }
+                return record;
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot map record at offset " + offset, e);
+            }
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(dataFile, "r")) {
+            try (FileChannel channel = raf.getChannel()) {
+                channel.position(offset);
+                return dataOperations.readRecord(channel);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read record at offset " + offset, e);
+        }
+    }
+
+    /**
+     * Visits the latest version of every flushed record in file order, sealed segments from oldest to newest first.
+     * Records are views over a memory mapping of the data file and a single record instance is reused for all
+     * of them, so memory use does not grow with the table. The record is only valid during the call, a record kept
+     * by the visitor must be copied first. Records added, updated or deleted since the last flush are visited
+     * as they were flushed.
+     *
+     * @param visitor called with each record and its offset in its data file, returns false to stop the scan
+     * @throws IOException if the data file cannot be mapped
+     */
+    public void scan(RecordVisitor<RECORD> visitor) throws IOException {
+        OffsetIndex delta;
+        MappedIndex index;
+        MappedDataFile data;
+        BloomFilter filter;
+        List<Segment<KEY, RECORD>> sealed;
+        long committed;
+        long garbage;
+        // the index and the data it points into are swapped together by a compaction or a seal
+        swapLock.readLock().lock();
+        try {
+            delta = indexDelta;
+            committed = committedLength;
+            garbage = garbageLength;
+            index = keyOffsets;
+            data = mappedData;
+            filter = keyFilter;
+            sealed = segments;
+            if (data == null && index != null) {
+                data = new MappedDataFile(dataFile);
+                data.remap();
+            }
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        List<RECORD> flyweight = new ArrayList<>(1);
+        boolean[] stopped = new boolean[1];
+        for (int i = sealed.size() - 1; i >= 0 && !stopped[0]; i--) {
+            Segment<KEY, RECORD> segment = sealed.get(i);
+            List<Segment<KEY, RECORD>> newer = sealed.subList(0, i);
+            boolean versioned = segment.getIndex().getGarbageLength() > 0;
+            MappedDataFile active = data;
+            segment.getData().scan(0, segment.length(), (offset, contents, tombstone) -> {
+                if (tombstone) {
+                    return true;
+                }
+                RECORD record = view(flyweight, contents);
+                KEY key = record.getKey();
+                int hash = OffsetIndex.hash(key);
+                if ((versioned && !segment.isIndexedAt(hash, offset))
+                        || isShadowed(key, delta, index, active, filter, newer)) {
+                    return true;
+                }
+                stopped[0] = !visitor.visit(record, offset);
+                return !stopped[0];
+            });
+        }
+        if (index == null || stopped[0]) {
+            return;
+        }
+        // without garbage every record in the file is the latest version of its key
+        boolean versioned = garbage > 0;
+        MappedDataFile active = data;
+        data.scan(0, committed, (offset, contents, tombstone) -> {
+            if (tombstone) {
+                return true;
+            }
+            RECORD record = view(flyweight, contents);
+            if (versioned && !isLatestAt(record.getKey(), offset, delta, index, active)) {
+                return true;
+            }
+            return visitor.visit(record, offset);
+        });
+    }
+
+    /**
+     * Checks whether the offset holds the latest flushed version of the key, the delta taking precedence.
+     */
+    private boolean isLatestAt(KEY key, long offset, OffsetIndex delta, MappedIndex index, MappedDataFile data) {
+        int hash = OffsetIndex.hash(key);
+        long latest = delta.get(hash, stored -> stored == offset || isKeyIn(data, key, stored));
+        if (latest >= 0) {
+            return latest == offset;
+        }
+        return index.get(hash, stored -> stored == offset) >= 0;
+    }
+
+    /**
+     * Points the reused record of a scan at the contents.
+     */
+    private RECORD view(List<RECORD> flyweight, ByteBuffer contents) {
+        if (flyweight.isEmpty()) {
+            flyweight.add(dataOperations.readRecord(contents));
+        } else {
+            flyweight.get(0).wrap(contents);
+        }
+        return flyweight.get(0);
+    }
+
+    /**
+     * Checks whether a newer version of the key is in the given data file index with its delta or newer segments.
+     */
+    private boolean isShadowed(KEY key, OffsetIndex delta, @Nullable MappedIndex index, @Nullable MappedDataFile data,
+                               @Nullable BloomFilter filter, List<Segment<KEY, RECORD>> newer) {
+        int hash = OffsetIndex.hash(key);
+        if (data != null && delta.get(hash, offset -> isKeyIn(data, key, offset)) >= 0) {
+            return true;
+        }
+        if (index != null && (filter == null || filter.mightContain(hash))
+                && index.get(hash, offset -> isKeyIn(data, key, offset)) >= 0) {
+            return true;
+        }
+        for (Segment<KEY, RECORD> segment : newer) {
+            if (segment.find(key) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isKeyIn(MappedDataFile data, KEY key, long offset) {
+        try {
+            ByteBuffer contents = data.recordAt(offset);
+            return contents != null && key.equals(dataOperations.readRecord(contents).getKey());
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot map record at offset " + offset, e);
+        }
+    }
+
+    /**
+     * Iterates live records with keys from {@code from} inclusive to {@code to} exclusive in key order,
+     * pending records included. Only records in the range are read, each with a lookup by key.
+     * Records added or deleted during the iteration may or may not be seen.
+     *
+     * @param from lowest key, null for no lower bound
+     * @param to   key right after the range, null for no upper bound
+     * @return records in key order
+     * @throws IllegalStateException if the table has no ordered index, see {@link TableOptions#orderedIndex(boolean)}
+     */
+    public Iterator<RECORD> scan(@Nullable KEY from, @Nullable KEY to) {
+        NavigableSet<KEY> keys = orderedKeys();
+        if (from != null && to != null) {
+            keys = keys.subSet(from, true, to, false);
+        } else if (from != null) {
+            keys = keys.tailSet(from, true);
+        } else if (to != null) {
+            keys = keys.headSet(to, false);
+        }
+        return recordsOf(keys.iterator());
+    }
+
+    /**
+     * Iterates live records whose string key starts with the prefix in key order, see {@link #scan(Object, Object)}.
+     *
+     * @param prefix start of the keys
+     * @return records in key order
+     * @throws IllegalStateException if the table has no ordered index
+     * @throws UnsupportedOperationException if keys are not strings
+     */
+    public Iterator<RECORD> prefix(String prefix) {
+        NavigableSet<KEY> keys = orderedKeys();
+        if (keyClass != String.class) {
+            throw new UnsupportedOperationException("Prefix scans need string keys, not " + keyClass.getName());
+        }
+        // strings with a common prefix are adjacent in natural order, starting at the prefix itself
+        return recordsOf(keys.tailSet(keyClass.cast(prefix), true).stream()
+                .takeWhile(key -> ((String) key).startsWith(prefix))
+                .iterator());
+    }
+
+    private NavigableSet<KEY> orderedKeys() {
+        if (orderedKeys == null) {
+            throw new IllegalStateException("Ordered index is not enabled for " + dataFile.getAbsolutePath());
+        }
+        return orderedKeys;
+    }
+
+    /**
+     * Looks up records of the keys lazily, skipping keys deleted since they were listed.
+     */
+    private Iterator<RECORD> recordsOf(Iterator<KEY> keys) {
+        return new Iterator<>() {
+            private RECORD next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && keys.hasNext()) {
+                    next = getRecordLazily(keys.next()).orElse(null);
+                }
+                return next != null;
+            }
+
+            @Override
+            public RECORD next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                RECORD result = next;
+                next = null;
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Collects live keys of flushed and replayed records into the sorted keys.
+     */
+    private void loadOrderedKeys() {
+        if (orderedKeys == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            scan((record, offset) -> {
+                orderedKeys.add(record.getKey());
+                return true;
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read keys of " + dataFile.getAbsolutePath(), e);
+        }
+        newRecords.forEach((key, record) -> {
+            if (record.isTombstone()) {
+                orderedKeys.remove(key);
+            } else {
+                orderedKeys.add(key);
+            }
+        });
+        logger.info("Sorted {} keys of {} in {} ms", orderedKeys.size(), dataFile.getAbsolutePath(),
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Copies flushed records into another table, e.g. to migrate them to a new record layout.
+     * The target is flushed every {@code batchSize} records, so memory use stays bounded.
+     *
+     * @param target    table receiving the records
+     * @param transform called with each record, may return the record itself
+     * @param batchSize number of records added to the target between flushes
+     * @throws IOException if the data file cannot be mapped or the target cannot be flushed
+     */
+    public void copyTo(Table<KEY, RECORD> target, UnaryOperator<RECORD> transform, int batchSize) throws IOException {
+        int[] pending = new int[1];
+        IOException[] failure = new IOException[1];
+        scan((record, offset) -> {
+            RECORD copy = transform.apply(record);
+            if (copy == record) {
+                // the scanned record is a view that is repointed at the next one
+                copy = dataOperations.readRecord(ByteBuffer.allocate(record.length()).put(record.contents()).flip());
+            }
+            target.addRecord(copy);
+            if (++pending[0] >= batchSize) {
+                try {
+                    target.flush();
+                } catch (IOException e) {
+                    failure[0] = e;
+                    return false;
+                }
+                pending[0] = 0;
+            }
+            return true;
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        target.flush();
+    }
+
+    /**
+     * Adds the record unless a record with the same key exists. Concurrent adds of the same key
+     * let exactly one of them through, also while a flush is running.
+     *
+     * @param record record to add
+     * @return true if the record was added
+     */
+    boolean addRecord(RECORD record) {
+        KEY key = record.getKey();
+        RECORD pending;
+        // disk reads happen without the swap lock, the probe holds unless a flush published records since,
+        // then the lock is released and the index probed again
+        ConcurrentHashMap<KEY, RECORD> probedFlushing = flushingRecords;
+        boolean probed = newRecords.get(key) == null && probedFlushing.get(key) == null;
+        boolean indexed = probed && isIndexed(key);
+        while (true) {
+            swapLock.readLock().lock();
+            try {
+                pending = newRecords.get(key);
+                RECORD flushing = pending == null ? flushingRecords.get(key) : null;
+                if (pending != null || flushing != null || (probed && flushingRecords == probedFlushing)) {
+                    boolean added;
+                    if (pending != null) {
+                        // a key deleted since the last flush is free again
+                        added = pending.isTombstone() && newRecords.replace(key, pending, record);
+                    } else {
+                        added = (flushing != null ? flushing.isTombstone() : !indexed)
+                                && newRecords.putIfAbsent(key, record) == null;
+                    }
+                    if (!added) {
+                        return false;
+                    }
+                    newRecordsBytes.add(record.getSize());
+                    if (orderedKeys != null) {
+                        // under the swap lock, so a flush dropping the deleted key sees the new record
+                        orderedKeys.add(key);
+                    }
+                    break;
+                }
+                probedFlushing = flushingRecords;
+            } finally {
+                swapLock.readLock().unlock();
+            }
+            indexed = isIndexed(key);
+            probed = true;
+        }
+        cache.invalidate(key);
+        if (writeAheadLog != null) {
+            try {
+                writeAheadLog.append(record.contents());
+            } catch (IOException e) {
+                restorePending(key, record, pending);
+                throw new RuntimeException("Cannot append record " + key + " to write-ahead log", e);
+            }
+        }
+        if (flusher != null && isFlushDue()) {
+            requestFlush();
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the record with the same key by a new version, which is appended to the data file by the next flush.
+     *
+     * @param record new version of the record
+     * @return true if a record with the key existed and was replaced
+     */
+    boolean updateRecord(RECORD record) {
+        return putVersion(record.getKey(), current -> record);
+    }
+
+    /**
+     * Deletes the record with the key. A tombstone is appended to the data file by the next flush.
+     *
+     * @param key key of the record
+     * @return true if a record with the key existed and was deleted
+     */
+    boolean deleteRecord(KEY key) {
+        return putVersion(key, current -> {
+            RECORD tombstone = dataOperations.readRecord(current.contents());
+            tombstone.markTombstone();
+            return tombstone;
+        });
+    }
+
+    /**
+     * Puts a new version of an existing key into new records. Concurrent versions of a key are ordered
+     * by their insert, which is also the order they reach the write-ahead log.
+     *
+     * @param key       key of the record
+     * @param versionOf builds the new version from the current record
+     * @return false if there is no record with the key
+     */
+    private boolean putVersion(KEY key, UnaryOperator<RECORD> versionOf) {
+        RECORD version;
+        RECORD pending;
+        // read from disk without the swap lock and probed again after a flush, as in addRecord
+        ConcurrentHashMap<KEY, RECORD> probedFlushing = flushingRecords;
+        boolean probed = newRecords.get(key) == null && probedFlushing.get(key) == null;
+        RECORD flushed = probed ? readRecordByOffset(key) : null;
+        while (true) {
+            swapLock.readLock().lock();
+            try {
+                pending = newRecords.get(key);
+                RECORD current = pending != null ? pending : flushingRecords.get(key);
+                if (current != null || (probed && flushingRecords == probedFlushing)) {
+                    if (current == null) {
+                        current = flushed;
+                    }
+                    if (current == null || current.isTombstone()) {
+                        return false;
+                    }
+                    version = versionOf.apply(current);
+                    if (pending != null ? newRecords.replace(key, pending, version)
+                            : newRecords.putIfAbsent(key, version) == null) {
+                        newRecordsBytes.add(version.getSize());
+                        break;
+                    }
+                    // another writer changed the key in between, look again
+                    continue;
+                }
+                probedFlushing = flushingRecords;
+            } finally {
+                swapLock.readLock().unlock();
+            }
+            flushed = readRecordByOffset(key);
+            probed = true;
+        }
+        cache.invalidate(key);
+        if (writeAheadLog != null) {
+            try {
+                writeAheadLog.append(version.contents(), version.isTombstone());
+            } catch (IOException e) {
+                restorePending(key, version, pending);
+                throw new RuntimeException("Cannot append version of " + key + " to write-ahead log", e);
+            }
+        }
+        if (flusher != null && isFlushDue()) {
+            requestFlush();
+        }
+        return true;
+    }
+
+    /**
+     * Takes back a record whose write-ahead log append failed, unless a flush has taken it already.
+     */
+    private void restorePending(KEY key, RECORD record, @Nullable RECORD previous) {
+        if (previous == null) {
+            newRecords.remove(key, record);
+        } else {
+            newRecords.replace(key, record, previous);
+        }
+    }
+
+    private boolean isFlushDue() {
+        return (options.getFlushMaxRecords() > 0 && newRecords.size() >= options.getFlushMaxRecords())
+                || (options.getFlushMaxBytes() > 0 && newRecordsBytes.sum() >= options.getFlushMaxBytes());
+    }
+
+    /**
+     * Schedules a background flush unless one is already waiting.
+     */
+    private void requestFlush() {
+        if (flushRequested.compareAndSet(false, true)) {
+            try {
+                flusher.execute(this::backgroundFlush);
+            } catch (RejectedExecutionException e) {
+                // the table is closing
+                flushRequested.set(false);
+            }
+        }
+    }
+
+    private void backgroundFlush() {
+        flushRequested.set(false);
+        if (records() > 0) {
+            try {
+                flush();
+            } catch (IOException | RuntimeException e) {
+                logger.error("Background flush of {} failed, records are kept for the next flush", dataFile.getAbsolutePath(), e);
+                return;
+            }
+        }
+        // garbage of explicit flushes is picked up too
+        try {
+            if (isCompactionDue(committedLength, garbageLength)) {
+                compact();
+            }
+            compactSegments(segment -> isCompactionDue(segment.length(), segment.getGarbageLength()));
+        } catch (IOException | RuntimeException e) {
+            logger.error("Background compaction of {} failed", dataFile.getAbsolutePath(), e);
+        }
+    }
+
+    private boolean isCompactionDue(long length, long garbage) {
+        double maxAmplification = options.getCompactionSpaceAmplification();
+        return maxAmplification > 0 && garbage > 0 && garbage >= options.getCompactionMinGarbageBytes()
+                && length >= maxAmplification * (length - garbage);
+    }
 
     /**
-     * Private constructor to enforce the use of the factory method.
+     * Writes records added so far to the data file and indexes them. Records added while the flush runs
+     * go to a fresh map and are left for the next flush. Flushes run one at a time.
      */
-    private Table(File dataFile, Class<RECORD> klazz, Class<KEY> keyKlazz) {
-        this.dataFile = dataFile;
-        this.indexFile = new File(dataFile.getAbsolutePath() + ".idx");
-        this.indexOperations = new IndexOperations<>(keyKlazz);
-        this.dataOperations = new DataOperations<>(klazz);
+    void flush() throws IOException {
+        flushLock.lock();
+        long start = System.nanoTime();
+        try {
+            // appends after the rollover go to the next segment, and their records are added after it too
+            long sealedLog = writeAheadLog == null ? -1 : writeAheadLog.rollover();
+            ConcurrentHashMap<KEY, RECORD> frozen;
+            swapLock.writeLock().lock();
+            try {
+                frozen = flushingRecords;
+                // records of a failed flush are still here and are written again with the new ones
+                frozen.putAll(newRecords);
+                newRecords = new ConcurrentHashMap<>();
+                newRecordsBytes.reset();
+            } finally {
+                swapLock.writeLock().unlock();
+            }
+            logger.debug("Flushing {} records to file {}", frozen.size(), dataFile.getAbsolutePath());
+            Map<KEY, Long> offsets = writeData(frozen, dataFile);
+
+            if (mappedData != null) {
+                mappedData.remap();
+            }
+            MappedIndex index = keyOffsets;
+            BloomFilter filter = keyFilter;
+            OffsetIndex delta = indexDelta;
+            long dataLength = dataFile.length();
+            long garbage = garbageLength;
+            int entries = indexEntries;
+            // version of the index file replaced by the first index of a new table, -1 if the index stays
+            long replacedVersion = -1;
+            if (offsets.isEmpty()) {
+                logger.debug("No index to flush for DB {}", dataFile.getAbsolutePath());
+            } else {
+                // versions replaced by this flush leave the index, tombstones enter it only to hide older segments
+                // or, through the delta, versions in the index file
+                boolean keepTombstones = keepTombstones();
+                boolean segmentGarbage = false;
+                int[] hashes = new int[offsets.size()];
+                long[] added = new long[offsets.size()];
+                long[] replaced = new long[offsets.size()];
+                int count = 0;
+                for (Map.Entry<KEY, Long> entry : offsets.entrySet()) {
+                    KEY key = entry.getKey();
+                    int hash = OffsetIndex.hash(key);
+                    RECORD record = frozen.get(key);
+                    long inDelta = delta.get(hash, offset -> isKeyAt(key, offset));
+                    long previous = inDelta >= 0 || index == null ? inDelta : index.get(hash, offset -> isKeyAt(key, offset));
+                    boolean dropped = record.isTombstone() && !keepTombstones;
+                    if (inDelta >= 0 && !keepTombstones && isTombstoneAt(inDelta)) {
+                        // the tombstone hides a version in the index file and was counted as garbage when flushed
+                        entries += dropped ? 0 : 1;
+                    } else if (previous >= 0) {
+                        garbage += frameLength(previous);
+                        entries -= dropped ? 1 : 0;
+                    } else {
+                        segmentGarbage |= addSegmentGarbage(key);
+                        if (dropped) {
+                            garbage += DataOperations.FRAME_HEADER_SIZE + record.length();
+                            continue;
+                        }
+                        entries++;
+                    }
+                    if (dropped) {
+                        garbage += DataOperations.FRAME_HEADER_SIZE + record.length();
+                    }
+                    hashes[count] = hash;
+                    added[count] = entry.getValue();
+                    replaced[count++] = inDelta;
+                }
+                if (segmentGarbage) {
+                    writeManifest(segments);
+                }
+                if (index == null) {
+                    // the first flush of a new table, its entries go to the delta of an empty index
+                    replacedVersion = indexVersion;
+                    index = mapIndex(replacedVersion + 1, new OffsetIndex(), committedLength, garbageLength);
+                    filter = writeFilter(versionFile(dataFile, FILTER_SUFFIX, replacedVersion + 1),
+                            0, consumer -> { }, committedLength);
+                }
+                deltaFile.append(committedLength, dataLength, garbage, entries, hashes, added, count);
+                delta = delta.copy();
+                for (int i = 0; i < count; i++) {
+                    long previous = replaced[i];
+                    delta.put(hashes[i], added[i], offset -> offset == previous);
+                }
+            }
+            long written = dataLength - committedLength;
+            swapLock.writeLock().lock();
+            try {
+                if (replacedVersion >= 0) {
+                    useIndexVersion(replacedVersion + 1);
+                }
+                keyFilter = filter;
+                keyOffsets = index;
+                indexDelta = delta;
+                committedLength = dataLength;
+                garbageLength = garbage;
+                indexEntries = entries;
+                flushingRecords = new ConcurrentHashMap<>();
+                // a lookup which read the disk before the publish cannot cache its stale result past this point
+                for (KEY key : offsets.keySet()) {
+                    cache.invalidate(key);
+                }
+                if (orderedKeys != null) {
+                    dropDeletedKeys(frozen);
+                }
+            } finally {
+                swapLock.writeLock().unlock();
+            }
+            if (replacedVersion >= 0) {
+                deleteIndexVersion(replacedVersion);
+            }
+            long duration = System.nanoTime() - start;
+            flushCount.incrementAndGet();
+            recordsWritten.addAndGet(offsets.size());
+            bytesWritten.addAndGet(written);
+            totalFlushNanos.addAndGet(duration);
+            maxFlushNanos.accumulateAndGet(duration, Math::max);
+            if (writeAheadLog != null) {
+                writeAheadLog.deleteSegmentsUpTo(sealedLog);
+            }
+            if (options.getSegmentSize() > 0 && committedLength >= options.getSegmentSize() && keyOffsets != null) {
+                seal();
+            } else if (delta.size() > Math.max(MIN_DELTA_MERGE, index == null ? 0 : index.getEntryCount() / 4)) {
+                mergeIndex();
+            }
+        } catch (IOException | RuntimeException e) {
+            flushFailures.incrementAndGet();
+            throw e;
+        } finally {
+            flushLock.unlock();
+        }
     }
 
-    boolean fileExists() {
-        return dataFile.exists() && dataFile.canWrite();
+    /**
+     * Rewrites the index file and its bloom filter with the entries of the delta and deletes the delta.
+     * Runs under the flush lock. The delta is replaced after the index, so lookups see every entry meanwhile.
+     */
+    private void mergeIndex() throws IOException {
+        OffsetIndex delta = indexDelta;
+        if (delta.size() == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        OffsetIndex merged = mergedOffsets(keyOffsets, delta);
+        long previous = indexVersion;
+        MappedIndex index = mapIndex(previous + 1, merged, committedLength, garbageLength);
+        BloomFilter filter = writeFilter(versionFile(dataFile, FILTER_SUFFIX, previous + 1),
+                merged.size(), merged::forEach, committedLength);
+        swapLock.writeLock().lock();
+        try {
+            useIndexVersion(previous + 1);
+            keyFilter = filter;
+            keyOffsets = index;
+            indexDelta = new OffsetIndex();
+            indexEntries = merged.size();
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+        deleteIndexVersion(previous);
+        // blocks left by a crash before this point end before the data length of the new index and are skipped
+        deltaFile.delete();
+        logger.debug("Merged {} delta entries into index {} in {} ms",
+                delta.size(), indexFile, (System.nanoTime() - start) / 1_000_000);
     }
 
-    boolean indexExists() {
-        return indexFile.exists() && indexFile.canRead();
+    /**
+     * Copies entries of the index file without a newer version in the delta, then entries of the delta,
+     * leaving out tombstones unless indexes keep them.
+     */
+    private OffsetIndex mergedOffsets(@Nullable MappedIndex index, OffsetIndex delta) {
+        OffsetIndex merged = new OffsetIndex((index == null ? 0 : index.getEntryCount()) + delta.size());
+        if (index != null) {
+            index.forEach((hash, offset) -> {
+                if (delta.get(hash, stored -> isSameKeyAt(stored, offset)) < 0) {
+                    merged.add(hash, offset);
+                }
+            });
+        }
+        boolean keepTombstones = keepTombstones();
+        delta.forEach((hash, offset) -> {
+            if (keepTombstones || !isTombstoneAt(offset)) {
+                merged.add(hash, offset);
+            }
+        });
+        return merged;
     }
 
-    void delete() {
-        if (!dataFile.delete()) {
-            throw new RuntimeException("Cannot delete db file " + dataFile.getAbsolutePath());
+    /**
+     * Removes keys whose tombstones were flushed from the sorted keys, unless they were added again since.
+     * Runs under the exclusive swap lock, so no add is halfway.
+     */
+    private void dropDeletedKeys(Map<KEY, RECORD> flushed) {
+        for (RECORD record : flushed.values()) {
+            if (record.isTombstone()) {
+                RECORD newer = newRecords.get(record.getKey());
+                if (newer == null || newer.isTombstone()) {
+                    orderedKeys.remove(record.getKey());
+                }
+            }
         }
-        if (indexExists()) {
-            if (!indexFile.delete()) {
-                throw new RuntimeException("Cannot delete index file " + indexFile.getAbsolutePath());
+    }
+
+    /**
+     * Counts the newest sealed version of a key as garbage of its segment, once the data file has a newer one.
+     *
+     * @return true if a segment holds the key
+     */
+    private boolean addSegmentGarbage(KEY key) {
+        for (Segment<KEY, RECORD> segment : segments) {
+            RECORD version = segment.find(key);
+            if (version != null) {
+                segment.addGarbage(DataOperations.FRAME_HEADER_SIZE + version.length());
+                return true;
             }
         }
+        return false;
     }
 
-    long size() {
-        return dataFile.length();
+    /**
+     * Turns the data file with its index and bloom filter into the newest sealed segment and starts an empty
+     * data file. Runs under the flush lock right after a flush, so all of the data file is committed.
+     * <p>
+     * The manifest lists the segment before its files are renamed, a crash in between leaves the files
+     * under the table names, and they are renamed on open. Lookups see the segment before the data file
+     * is renamed and skip the index of the data file until the empty one is published.
+     */
+    private void seal() throws IOException {
+        mergeIndex();
+        long id = nextSegmentId++;
+        File segmentFile = Segment.dataFile(tableFile, id);
+        MappedDataFile data = mappedData;
+        if (data == null) {
+            data = new MappedDataFile(dataFile);
+        }
+        data.remap();
+        // the mapping covers all of the data and must not follow the data file path to the new empty file
+        data.seal();
+        List<Segment<KEY, RECORD>> sealed = new ArrayList<>(segments.size() + 1);
+        sealed.add(new Segment<>(id, segmentFile, data, keyOffsets, keyFilter, dataOperations, garbageLength));
+        sealed.addAll(segments);
+        writeManifest(sealed);
+        swapLock.writeLock().lock();
+        try {
+            segments = List.copyOf(sealed);
+            keyFilter = null;
+            keyOffsets = null;
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+        Files.move(indexFile.toPath(), Segment.indexFile(segmentFile).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        if (filterFile.exists()) {
+            Files.move(filterFile.toPath(), Segment.filterFile(segmentFile).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        Files.move(dataFile.toPath(), segmentFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        Files.createFile(dataFile.toPath());
+        long version = indexVersion + 1;
+        MappedIndex index = mapIndex(version, new OffsetIndex(), 0, 0);
+        BloomFilter filter = writeFilter(versionFile(dataFile, FILTER_SUFFIX, version), 0, consumer -> { }, 0);
+        swapLock.writeLock().lock();
+        try {
+            useIndexVersion(version);
+            if (mappedData != null) {
+                MappedDataFile empty = new MappedDataFile(dataFile);
+                empty.remap();
+                mappedData = empty;
+            }
+            keyFilter = filter;
+            keyOffsets = index;
+            committedLength = 0;
+            garbageLength = 0;
+            indexEntries = 0;
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+        logger.info("Sealed segment {} of {} bytes", segmentFile.getAbsolutePath(), sealed.get(0).length());
     }
 
-    long records() {
-        return newRecords.size();
+    private void writeManifest(List<Segment<KEY, RECORD>> sealed) throws IOException {
+        writeManifest(generation, sealed);
     }
 
-    long idxSize() {
-        return keyOffsets.size();
+    private void writeManifest(long generation, List<Segment<KEY, RECORD>> sealed) throws IOException {
+        List<SegmentManifest.Entry> entries = new ArrayList<>(sealed.size());
+        for (Segment<KEY, RECORD> segment : sealed) {
+            entries.add(new SegmentManifest.Entry(segment.getId(), segment.getGarbageLength()));
+        }
+        manifest.write(generation, entries);
     }
 
-    void readRecords(boolean fillIndex) throws IOException {
-        dataOperations.readData(dataFile).iterator().forEachRemaining(
-                result -> {
-                    if (result.getRecord() != null) {
-                        newRecords.put(result.getRecord().getKey(), result.getRecord());
-                        if (fillIndex) {
-                            keyOffsets.put(result.getRecord().getKey(), result.getOffset());
-                        }
-                    }
-                }
-        );
+    /**
+     * Appends records to the data file right after the committed data and forces them to disk.
+     * Data past the committed length, left by a failed flush, is cut off first.
+     */
+    private Map<KEY, Long> writeData(Map<KEY, RECORD> records, File dataFile) throws IOException {
+        if (dataFile.length() > committedLength) {
+            cutData(committedLength);
+        }
+        try (FileChannel channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.WRITE)) {
+            channel.position(committedLength);
+            if (flushThrottle != null) {
+                flushThrottle.begin();
+            }
+            FlushResult<KEY> result = dataOperations.writeData(records.values(), channel, flushThrottle);
+            channel.force(true);
+            return result.getIndexOffsets();
+        }
     }
 
-    void readIndex() throws IOException {
-        Map<KEY, Long> offsets = indexOperations.readIndex(indexFile);
-        keyOffsets.clear();
-        keyOffsets.putAll(offsets);
+    /**
+     * Writes the given entries as the next version of the index file, maps it and deletes the previous version.
+     */
+    private void writeIndex(OffsetIndex offsets) throws IOException {
+        long dataLength = dataFile.length();
+        // blocks of the old delta could chain to the new index
+        deltaFile.delete();
+        long previous = indexVersion;
+        MappedIndex index = mapIndex(previous + 1, offsets, dataLength, garbageLength);
+        keyFilter = writeFilter(versionFile(dataFile, FILTER_SUFFIX, previous + 1), offsets.size(), offsets::forEach, dataLength);
+        keyOffsets = index;
+        indexDelta = new OffsetIndex();
+        indexEntries = offsets.size();
+        committedLength = dataLength;
+        useIndexVersion(previous + 1);
+        deleteIndexVersion(previous);
     }
 
-    public Optional<RECORD> getRecordLazily(KEY key)  {
-        RECORD result = cache.computeIfAbsent(key, k -> readRecordByOffset(key));
-        if (result == null) {
-            result = newRecords.get(key);
+    /**
+     * Writes a version of the index file of the data file and maps it. Versions are never rewritten,
+     * the table switches to the new one with {@link #useIndexVersion(long)}.
+     */
+    private MappedIndex mapIndex(long version, OffsetIndex offsets, long dataLength, long garbage) throws IOException {
+        File file = versionFile(dataFile, INDEX_SUFFIX, version);
+        MappedIndex.write(file, offsets, dataLength, garbage);
+        return MappedIndex.open(file);
+    }
+
+    /**
+     * Deletes the index and bloom filter files of a replaced index version. A file which cannot be deleted yet,
+     * because it is still mapped on some platforms, is left for the next open.
+     */
+    private void deleteIndexVersion(long version) {
+        for (File file : new File[]{versionFile(dataFile, INDEX_SUFFIX, version), versionFile(dataFile, FILTER_SUFFIX, version)}) {
+            if (file.exists() && !file.delete()) {
+                logger.warn("Cannot delete replaced index file {}", file.getAbsolutePath());
+            }
         }
-        return Optional.ofNullable(result);
     }
 
+    /**
+     * Builds the bloom filter of index entries and writes it next to the index, with the same version.
+     * The filter is written after the index, a crash in between leaves a missing filter which is rebuilt on open.
+     *
+     * @param file       filter file
+     * @param entries    number of index entries
+     * @param index      passes every index entry to a consumer
+     * @param dataLength length of the data covered by the index
+     * @return the filter, null if disabled
+     */
     @Nullable
-    private RECORD readRecordByOffset(KEY key) {
-        Long offset = keyOffsets.get(key);
-        if (offset == null) return null;
-        try (RandomAccessFile raf = new RandomAccessFile(dataFile, "r")) {
-            try (FileChannel channel = raf.getChannel()) {
-                channel.position(offset);
-                return dataOperations.readRecord(channel);
+    private BloomFilter writeFilter(File file, int entries, Consumer<EntryConsumer> index, long dataLength) throws IOException {
+        double falsePositiveRate = options.getBloomFilterFalsePositiveRate();
+        if (falsePositiveRate == 0) {
+            return null;
+        }
+        BloomFilter filter = BloomFilter.create(entries, falsePositiveRate);
+        index.accept((hash, offset) -> filter.add(hash));
+        filter.write(file, dataLength);
+        return filter;
+    }
+
+    /**
+     * Rewrites the data file with only the latest version of every key and replaces the index to match.
+     * Lookups keep running on the old files until the new ones are swapped in, writers wait only for the swap
+     * and flushes wait for the whole compaction. Records are copied in file order, throttled by
+     * {@link TableOptions#compactionRateLimit(long)}.
+     * <p>
+     * The compacted data, index and bloom filter are written as the next generation of the table files,
+     * which the manifest then names as current. A crash before leaves files of a generation which is not
+     * current, a crash after leaves the old generation, both are deleted on open. Files of the old generation
+     * are deleted once the new one is swapped in, never renamed over or truncated while they may be mapped.
+     *
+     * @throws IOException if the compacted files cannot be written
+     */
+    void compact() throws IOException {
+        flushLock.lock();
+        long start = System.nanoTime();
+        try {
+            if (keyOffsets == null || garbageLength == 0) {
+                return;
             }
-        } catch (IOException e) {
-            throw new RuntimeException("Cannot read record for key " + key + " at offset " + offset, e);
+            mergeIndex();
+            MappedIndex index = keyOffsets;
+            MappedDataFile source = mappedData;
+            if (source == null) {
+                source = new MappedDataFile(dataFile);
+            }
+            source.remap();
+            int count = index.getEntryCount();
+            long[] offsets = new long[count];
+            int[] hashes = new int[count];
+            int[] entries = new int[1];
+            index.forEach((hash, offset) -> {
+                offsets[entries[0]] = offset;
+                hashes[entries[0]++] = hash;
+            });
+            int[] order = offsetOrder(offsets, count);
+            long[] sorted = new long[count];
+            for (int i = 0; i < count; i++) {
+                sorted[i] = offsets[order[i]];
+            }
+
+            long previous = generation;
+            File compactData = generationFile(previous + 1);
+            File compactIndex = versionFile(compactData, INDEX_SUFFIX, 1);
+            long[] copied;
+            long dataLength;
+            try (FileChannel channel = FileChannel.open(compactData.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                if (compactionThrottle != null) {
+                    compactionThrottle.begin();
+                }
+                copied = dataOperations.copyRecords(source, sorted, channel, compactionThrottle);
+                channel.force(true);
+                dataLength = channel.position();
+            }
+            OffsetIndex compacted = new OffsetIndex(count);
+            for (int i = 0; i < count; i++) {
+                compacted.add(hashes[order[i]], copied[i]);
+            }
+            MappedIndex.write(compactIndex, compacted, dataLength);
+            // the same keys as before, only the marker of the covered data changes
+            BloomFilter filter = writeFilter(versionFile(compactData, FILTER_SUFFIX, 1),
+                    count, compacted::forEach, dataLength);
+            MappedIndex compactedIndex = MappedIndex.open(compactIndex);
+            MappedDataFile compactedData = null;
+            if (mappedData != null) {
+                compactedData = new MappedDataFile(compactData);
+                compactedData.remap();
+            }
+            writeManifest(previous + 1, segments);
+
+            long reclaimed = committedLength - dataLength;
+            // the new files are open, writers wait only for the references to be swapped
+            swapLock.writeLock().lock();
+            try {
+                useGeneration(previous + 1, 1);
+                if (compactedData != null) {
+                    mappedData = compactedData;
+                }
+                keyFilter = filter;
+                keyOffsets = compactedIndex;
+                committedLength = dataLength;
+                garbageLength = 0;
+                indexEntries = count;
+            } finally {
+                swapLock.writeLock().unlock();
+            }
+            deleteGeneration(previous);
+            cache.invalidateAll();
+            compactionCount.incrementAndGet();
+            bytesCompacted.addAndGet(dataLength);
+            logger.info("Compacted {} to {} bytes, reclaimed {} bytes in {} ms", dataFile.getAbsolutePath(),
+                    dataLength, reclaimed, (System.nanoTime() - start) / 1_000_000);
+        } finally {
+            flushLock.unlock();
         }
     }
 
-    void addRecord(RECORD record) {
-        if (! newRecords.containsKey(record.getKey()) && ! keyOffsets.containsKey(record.getKey())) {
-            newRecords.put(record.getKey(), record);
+    /**
+     * Returns positions of the offsets in ascending offset order, so records are copied in file order.
+     */
+    private static int[] offsetOrder(long[] offsets, int count) {
+        long max = 0;
+        for (int i = 0; i < count; i++) {
+            max = Math.max(max, offsets[i]);
         }
+        if (count == 0 || max >= Long.MAX_VALUE / count) {
+            return IntStream.range(0, count).boxed()
+                    .sorted(Comparator.comparingLong(i -> offsets[i]))
+                    .mapToInt(Integer::intValue).toArray();
+        }
+        // positions ride along in the low digits, so a primitive sort does
+        long[] packed = new long[count];
+        for (int i = 0; i < count; i++) {
+            packed[i] = offsets[i] * count + i;
+        }
+        Arrays.sort(packed);
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = (int) (packed[i] % count);
+        }
+        return order;
+    }
+
+    /**
+     * Compacts every sealed segment with garbage, see {@link #compactSegment(Segment)}.
+     *
+     * @throws IOException if a compacted segment cannot be written
+     */
+    void compactSegments() throws IOException {
+        compactSegments(segment -> segment.getGarbageLength() > 0);
     }
 
-    synchronized void flush() throws IOException {
-        logger.debug("Flushing {} records to file {}", newRecords.size(), dataFile.getAbsolutePath());
-        Map<KEY, Long> offsets = writeData(newRecords, dataFile);
+    private void compactSegments(Predicate<Segment<KEY, RECORD>> selected) throws IOException {
+        flushLock.lock();
+        try {
+            for (Segment<KEY, RECORD> segment : segments) {
+                if (selected.test(segment)) {
+                    compactSegment(segment);
+                }
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
 
-        if (offsets.isEmpty()) {
-            logger.debug("No index to flush for DB {}", dataFile.getAbsolutePath());
+    /**
+     * Rewrites a sealed segment into a new one under the next segment id, without versions replaced
+     * by newer segments or the data file and without tombstones which hide nothing older. A segment left
+     * with no records is dropped. The manifest is switched to the new segment before the old one is deleted,
+     * a crash before leaves a new segment which is not listed and deleted on open.
+     * Runs under the flush lock, so the data file index does not change meanwhile.
+     */
+    private void compactSegment(Segment<KEY, RECORD> segment) throws IOException {
+        long start = System.nanoTime();
+        List<Segment<KEY, RECORD>> current = segments;
+        int position = current.indexOf(segment);
+        List<Segment<KEY, RECORD>> newer = current.subList(0, position);
+        List<Segment<KEY, RECORD>> older = current.subList(position + 1, current.size());
+        OffsetIndex delta = indexDelta;
+        MappedIndex index = keyOffsets;
+        BloomFilter filter = keyFilter;
+        MappedDataFile data = mappedData;
+        if (data == null && index != null) {
+            data = new MappedDataFile(dataFile);
+            data.remap();
+        }
+        MappedDataFile active = data;
+        int capacity = segment.getIndex().getEntryCount();
+        long[] offsets = new long[capacity];
+        int[] hashes = new int[capacity];
+        int[] entries = new int[1];
+        segment.getIndex().forEach((hash, offset) -> {
+            RECORD record = segment.readAt(offset);
+            KEY key = record.getKey();
+            if (isShadowed(key, delta, index, active, filter, newer)) {
+                return;
+            }
+            if (record.isTombstone() && !hasLiveVersion(key, older)) {
+                return;
+            }
+            offsets[entries[0]] = offset;
+            hashes[entries[0]++] = hash;
+        });
+        int count = entries[0];
+        List<Segment<KEY, RECORD>> compacted = new ArrayList<>(current);
+        long dataLength = 0;
+        if (count == 0) {
+            compacted.remove(position);
         } else {
-            writeIndex(offsets, indexFile);
+            int[] order = offsetOrder(offsets, count);
+            long[] sorted = new long[count];
+            for (int i = 0; i < count; i++) {
+                sorted[i] = offsets[order[i]];
+            }
+            long id = nextSegmentId++;
+            File target = Segment.dataFile(tableFile, id);
+            long[] copied;
+            try (FileChannel channel = FileChannel.open(target.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                if (compactionThrottle != null) {
+                    compactionThrottle.begin();
+                }
+                copied = dataOperations.copyRecords(segment.getData(), sorted, channel, compactionThrottle);
+                channel.force(true);
+                dataLength = channel.position();
+            }
+            OffsetIndex rewritten = new OffsetIndex(count);
+            for (int i = 0; i < count; i++) {
+                rewritten.add(hashes[order[i]], copied[i]);
+            }
+            MappedIndex.write(Segment.indexFile(target), rewritten, dataLength);
+            compacted.set(position, Segment.open(tableFile, id, dataOperations, options.getBloomFilterFalsePositiveRate(), 0, false));
         }
-        newRecords.clear();
+        writeManifest(compacted);
+        segments = List.copyOf(compacted);
+        segment.deleteFiles();
+        compactionCount.incrementAndGet();
+        bytesCompacted.addAndGet(dataLength);
+        logger.info("Compacted segment {} of {} to {} bytes in {} ms", segment.getId(), dataFile.getAbsolutePath(),
+                dataLength, (System.nanoTime() - start) / 1_000_000);
     }
 
-    private Map<KEY, Long> writeData(Map<KEY, RECORD> records, File dataFile) throws IOException {
-        FlushResult<KEY> result = dataOperations.writeData(records.values(), dataFile);
-        File tempFile = result.getDataFile();
-        mergeFiles(dataFile, tempFile);
-        return result.getIndexOffsets();
+    /**
+     * Checks whether the newest version of the key in the segments is a live record.
+     */
+    private boolean hasLiveVersion(KEY key, List<Segment<KEY, RECORD>> sealed) {
+        for (Segment<KEY, RECORD> segment : sealed) {
+            RECORD version = segment.find(key);
+            if (version != null) {
+                return !version.isTombstone();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Opens sealed segments listed in the manifest in parallel. Finishes a seal interrupted before the data file
+     * was renamed and deletes segment files which are not listed, left by an interrupted segment compaction.
+     */
+    private void openSegments() throws IOException {
+        SegmentManifest.Contents contents = manifest.read();
+        if (contents.getGeneration() != generation) {
+            useGeneration(contents.getGeneration());
+            if (mappedData != null) {
+                mappedData = new MappedDataFile(dataFile);
+            }
+        }
+        List<SegmentManifest.Entry> entries = contents.getEntries();
+        Set<Long> listed = new HashSet<>();
+        for (SegmentManifest.Entry entry : entries) {
+            listed.add(entry.getId());
+            nextSegmentId = Math.max(nextSegmentId, entry.getId() + 1);
+        }
+        deleteUnlistedSegments(listed);
+        if (entries.isEmpty()) {
+            return;
+        }
+        File newest = Segment.dataFile(tableFile, entries.get(0).getId());
+        if (!newest.exists() && dataFile.exists()) {
+            logger.warn("Finishing seal of segment {}", newest.getAbsolutePath());
+            moveIfExists(indexFile, Segment.indexFile(newest));
+            moveIfExists(filterFile, Segment.filterFile(newest));
+            Files.move(dataFile.toPath(), newest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        try {
+            segments = entries.parallelStream().map(entry -> {
+                try {
+                    return Segment.open(tableFile, entry.getId(), dataOperations,
+                            options.getBloomFilterFalsePositiveRate(), entry.getGarbageLength(), options.isVerifyOnOpen());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).toList();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        logger.info("Opened {} segments of {}", entries.size(), dataFile.getAbsolutePath());
+    }
+
+    private void deleteUnlistedSegments(Set<Long> listed) {
+        String prefix = tableFile.getName() + Segment.SUFFIX;
+        File[] files = tableFile.getAbsoluteFile().getParentFile().listFiles((dir, name) -> name.startsWith(prefix));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String rest = file.getName().substring(prefix.length());
+            int end = rest.indexOf('.');
+            long id;
+            try {
+                id = Long.parseLong(end < 0 ? rest : rest.substring(0, end));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (!listed.contains(id) && !file.delete()) {
+                logger.warn("Cannot delete unlisted segment file {}", file.getAbsolutePath());
+            }
+        }
+    }
+
+    private static void moveIfExists(File source, File target) throws IOException {
+        if (source.exists()) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Deletes files of generations other than the one in the manifest, left by a compaction interrupted before
+     * the manifest listed its generation or before the previous one was deleted, and files of compactions
+     * which renamed their output over the data file.
+     */
+    private void deleteCompactionLeftovers() {
+        for (File file : new File[]{new File(tableFile.getAbsolutePath() + COMPACT_SUFFIX),
+                new File(tableFile.getAbsolutePath() + ".idx" + COMPACT_SUFFIX)}) {
+            if (file.exists() && !file.delete()) {
+                logger.warn("Cannot delete compaction leftover {}", file.getAbsolutePath());
+            }
+        }
+        if (generation != 0) {
+            deleteGeneration(0);
+        }
+        String prefix = tableFile.getName() + GENERATION_SUFFIX;
+        File[] files = tableFile.getAbsoluteFile().getParentFile().listFiles((dir, name) -> name.startsWith(prefix));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String rest = file.getName().substring(prefix.length());
+            int end = rest.indexOf('.');
+            try {
+                if (Long.parseLong(end < 0 ? rest : rest.substring(0, end)) == generation) {
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (!file.delete()) {
+                logger.warn("Cannot delete compaction leftover {}", file.getAbsolutePath());
+            }
+        }
     }
 
-    private void writeIndex(Map<KEY, Long> offsets, File indexFile) throws IOException {
-        File tempIndexFile = indexOperations.writeIndex(offsets);
-        mergeFiles(indexFile, tempIndexFile);
+    /**
+     * Deletes the data file of a generation with all versions of its index and bloom filter and its index delta.
+     * A file which cannot be deleted yet, because it is still mapped on some platforms, is left for the next open.
+     */
+    private void deleteGeneration(long generation) {
+        File data = generationFile(generation);
+        List<File> files = new ArrayList<>(List.of(indexFiles(data)));
+        files.add(data);
+        for (File file : files) {
+            if (file.exists() && !file.delete()) {
+                logger.warn("Cannot delete file {} of generation {}", file.getAbsolutePath(), generation);
+            }
+        }
     }
 
-    private void mergeFiles(File mainFile, File update) throws IOException {
-        try (FileChannel outputChannel = FileChannel.open(mainFile.toPath(), StandardOpenOption.APPEND)) {
-            try (FileChannel tempChannel = FileChannel.open(update.toPath(), StandardOpenOption.READ)) {
-                tempChannel.transferTo(0, tempChannel.size(), outputChannel);
+    /**
+     * Deletes index and bloom filter files of the data file other than the current version, left by a crash
+     * before a replaced version was deleted or kept while mapped on some platforms.
+     */
+    private void deleteReplacedIndexVersions() {
+        File delta = deltaFile(dataFile);
+        for (File file : indexFiles(dataFile)) {
+            if (!file.equals(indexFile) && !file.equals(filterFile) && !file.equals(delta) && !file.delete()) {
+                logger.warn("Cannot delete replaced index file {}", file.getAbsolutePath());
             }
         }
     }
@@ -168,7 +2115,7 @@ public class Table<KEY, RECORD extends AbstractRecord<KEY>> {
     }
 
     /**
-     * Factory method to create or read a table from a file.
+     * Factory method to create or read a table from a file with default options.
      * If the file does not exist, it will be created.
      *
      * @param dbFile database file.
@@ -178,8 +2125,46 @@ public class Table<KEY, RECORD extends AbstractRecord<KEY>> {
      * @return instance of Table
      */
     public static <K, R extends AbstractRecord<K>> Table<K, R> createOrRead(File dbFile, Class<R> klass, Class<K> keyKlazz) {
-        Table<K, R> table = new Table<>(dbFile, klass, keyKlazz);
-        if (dbFile.exists()) {
+        return createOrRead(dbFile, klass, keyKlazz, TableOptions.defaults());
+    }
+
+    /**
+     * Factory method to create or read a table from a file.
+     * If the file does not exist, it will be created.
+     *
+     * @param dbFile  database file.
+     * @param klass   class of the record
+     * @param options table options
+     * @param <K>     type of the key
+     * @param <R>     type of the record
+     * @return instance of Table
+     */
+    public static <K, R extends AbstractRecord<K>> Table<K, R> createOrRead(File dbFile, Class<R> klass, Class<K> keyKlazz, TableOptions options) {
+        return createOrRead(dbFile, AbstractRecord.factory(klass), keyKlazz, options);
+    }
+
+    /**
+     * Factory method to create or read a table from a file, building records with the given factory.
+     * If the file does not exist, it will be created.
+     *
+     * @param dbFile        database file.
+     * @param recordFactory builds a record over its contents, e.g. {@code AuthzRecord::new}
+     * @param options       table options
+     * @param <K>           type of the key
+     * @param <R>           type of the record
+     * @return instance of Table
+     */
+    public static <K, R extends AbstractRecord<K>> Table<K, R> createOrRead(File dbFile, Function<ByteBuffer, R> recordFactory, Class<K> keyKlazz, TableOptions options) {
+        Table<K, R> table = new Table<>(dbFile, recordFactory, keyKlazz, options);
+        try {
+            // the manifest names the generation of the data file
+            table.openSegments();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot open segments of " + dbFile.getAbsolutePath(), e);
+        }
+        table.deleteCompactionLeftovers();
+        table.deleteReplacedIndexVersions();
+        if (table.dataFile.exists()) {
             if (table.indexExists()) {
                 try {
                     table.readIndex();
@@ -193,16 +2178,24 @@ public class Table<KEY, RECORD extends AbstractRecord<KEY>> {
                     if ((indexParent.exists() || indexParent.mkdirs()) && table.indexFile.createNewFile()) {
                         logger.warn("Index file {} does not exist. Created new empty index file.", table.indexFile);
                     }
-                    table.readRecords(true);
+                    table.rebuildIndex();
                 } catch (IOException e) {
                     throw new RuntimeException("Cannot read db file " + dbFile.getAbsolutePath(), e);
                 }
             }
+            table.mapData();
+            table.openWriteAheadLog();
+            table.loadOrderedKeys();
+            table.startFlusher();
             return table;
         } else {
             try {
                 File parent = dbFile.getParentFile();
-                if ((parent.exists() || parent.mkdirs()) && dbFile.createNewFile()) {
+                if ((parent.exists() || parent.mkdirs()) && table.dataFile.createNewFile()) {
+                    table.mapData();
+                    table.openWriteAheadLog();
+                    table.loadOrderedKeys();
+                    table.startFlusher();
                     return table;
                 } else {
                     throw new RuntimeException("Cannot create new db file " + dbFile.getAbsolutePath());
@@ -213,8 +2206,130 @@ public class Table<KEY, RECORD extends AbstractRecord<KEY>> {
         }
     }
 
+    /**
+     * Opens the write-ahead log if enabled and puts records it holds back to new records.
+     */
+    private void openWriteAheadLog() {
+        if (options.getWriteAheadLog() == null) {
+            return;
+        }
+        try {
+            writeAheadLog = new WriteAheadLog(tableFile, options.getWriteAheadLog());
+            writeAheadLog.replay((buffer, tombstone) -> {
+                RECORD record = dataOperations.readRecord(ByteBuffer.allocate(buffer.remaining()).put(buffer).flip());
+                KEY key = record.getKey();
+                if (tombstone) {
+                    record.markTombstone();
+                } else if (!newRecords.containsKey(key)) {
+                    // skip records flushed before the crash left their segment behind
+                    RECORD indexed = readRecordByOffset(key);
+                    if (indexed != null && indexed.contents().equals(record.contents())) {
+                        return;
+                    }
+                }
+                // versions are replayed in the order they were accepted, so the last one wins
+                newRecords.put(key, record);
+                // counted like accepted records, so a large replay triggers the size based flush
+                newRecordsBytes.add(record.getSize());
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot replay write-ahead log of " + dataFile.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Starts the background flusher if a flush trigger is set in the options.
+     */
+    private void startFlusher() {
+        if (!options.isBackgroundFlush()) {
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "table-flush-" + tableFile.getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = options.getFlushIntervalMillis();
+        if (interval > 0) {
+            flusher.scheduleWithFixedDelay(this::backgroundFlush, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Flushes pending records, stops the background flusher after a running flush, then syncs and closes
+     * the write-ahead log. If the flush fails the rest still closes, records stay in the log if there is one,
+     * and the failure is thrown. Asynchronous lookups already started still complete.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (ownLookupExecutor != null) {
+                ownLookupExecutor.shutdown();
+            }
+        }
+        IOException failure = null;
+        if (records() > 0) {
+            // without a write-ahead log pending records exist only in memory
+            try {
+                flush();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                if (!flusher.awaitTermination(1, TimeUnit.MINUTES)) {
+                    logger.warn("Background flush of {} is still running", dataFile.getAbsolutePath());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (writeAheadLog != null) {
+            writeAheadLog.close();
+        }
+        if (failure != null) {
+            throw new RuntimeException("Cannot flush pending records of " + dataFile.getAbsolutePath(), failure);
+        }
+    }
+
+    private void mapData() {
+        if (mappedData != null) {
+            try {
+                mappedData.remap();
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot map db file " + dataFile.getAbsolutePath(), e);
+            }
+        }
+    }
+
     public Optional<RECORD> getRecord(KEY key) {
-        return Optional.ofNullable(newRecords.get(key));
+        return Optional.ofNullable(getPending(key)).filter(record -> !record.isTombstone());
+    }
+
+    /**
+     * Returns counters of the record cache.
+     * @return cache statistics
+     */
+    public CacheStats cacheStats() {
+        return cache.stats();
+    }
+
+    /**
+     * Returns counters of completed and failed flushes and of compactions.
+     * @return flush statistics
+     */
+    public FlushStats flushStats() {
+        long dataLength = committedLength;
+        long garbage = garbageLength;
+        for (Segment<KEY, RECORD> segment : segments) {
+            dataLength += segment.length();
+            garbage += segment.getGarbageLength();
+        }
+        return new FlushStats(flushCount.get(), flushFailures.get(), recordsWritten.get(), bytesWritten.get(),
+                totalFlushNanos.get(), maxFlushNanos.get(), compactionCount.get(), bytesCompacted.get(),
+                dataLength, garbage);
     }
 
     public boolean isReadOnly() {
@@ -222,6 +2337,7 @@ public class Table<KEY, RECORD extends AbstractRecord<KEY>> {
     }
 
     public int recordCount() {
-        return newRecords.isEmpty()? keyOffsets.size() : newRecords.size();
+        long pending = records();
+        return pending == 0 ? (int) idxSize() : (int) pending;
     }
 }
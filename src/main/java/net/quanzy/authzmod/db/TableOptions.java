@@ -0,0 +1,299 @@
+package net.quanzy.authzmod.db;
+
+import net.quanzy.authzmod.db.operations.FsyncPolicy;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Tuning options for a {@link Table}.
+ */
+public class TableOptions {
+
+    /**
+     * How records are read from the data file on a cache miss.
+     */
+    public enum ReadMode {
+        /**
+         * Opens a file channel per lookup.
+         */
+        CHANNEL,
+        /**
+         * Slices records out of a memory mapping of the data file.
+         */
+        MAPPED
+    }
+
+    private ReadMode readMode = ReadMode.MAPPED;
+    private RecordCache.Policy cachePolicy = RecordCache.Policy.LRU;
+    private long cacheMaxWeight = 32L * 1024 * 1024;
+    private int negativeCacheSize = 65536;
+    private FsyncPolicy writeAheadLog = null;
+    private long flushMaxBytes = 0;
+    private int flushMaxRecords = 0;
+    private long flushIntervalMillis = 0;
+    private long flushBytesPerSecond = 0;
+    private double compactionSpaceAmplification = 0;
+    private long compactionMinGarbageBytes = 0;
+    private long compactionBytesPerSecond = 0;
+    private double bloomFilterFalsePositiveRate = 0.01;
+    private long segmentSize = 0;
+    private Executor lookupExecutor = null;
+    private boolean orderedIndex = false;
+    private boolean verifyOnOpen = false;
+
+    /**
+     * Returns options with default values.
+     * @return default options
+     */
+    public static TableOptions defaults() {
+        return new TableOptions();
+    }
+
+    /**
+     * Sets the read mode used for lookups.
+     * @param readMode read mode
+     * @return these options
+     */
+    public TableOptions readMode(ReadMode readMode) {
+        this.readMode = readMode;
+        return this;
+    }
+
+    public ReadMode getReadMode() {
+        return readMode;
+    }
+
+    /**
+     * Sets eviction policy of the record cache.
+     * @param cachePolicy cache policy
+     * @return these options
+     */
+    public TableOptions cachePolicy(RecordCache.Policy cachePolicy) {
+        this.cachePolicy = cachePolicy;
+        return this;
+    }
+
+    /**
+     * Sets limit of total size of cached records in bytes.
+     * @param cacheMaxWeight maximal weight of the cache
+     * @return these options
+     */
+    public TableOptions cacheMaxWeight(long cacheMaxWeight) {
+        this.cacheMaxWeight = cacheMaxWeight;
+        return this;
+    }
+
+    /**
+     * Sets how many absent keys the cache remembers, 0 disables negative caching.
+     * @param negativeCacheSize number of remembered absent keys
+     * @return these options
+     */
+    public TableOptions negativeCacheSize(int negativeCacheSize) {
+        this.negativeCacheSize = negativeCacheSize;
+        return this;
+    }
+
+    public RecordCache.Policy getCachePolicy() {
+        return cachePolicy;
+    }
+
+    public long getCacheMaxWeight() {
+        return cacheMaxWeight;
+    }
+
+    public int getNegativeCacheSize() {
+        return negativeCacheSize;
+    }
+
+    /**
+     * Enables the write-ahead log, so added records survive a crash before flush.
+     * @param fsyncPolicy when appended records are forced to disk, null disables the log
+     * @return these options
+     */
+    public TableOptions writeAheadLog(FsyncPolicy fsyncPolicy) {
+        this.writeAheadLog = fsyncPolicy;
+        return this;
+    }
+
+    public FsyncPolicy getWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    /**
+     * Enables the background flusher. A flush starts once any of the limits is reached, 0 disables a limit.
+     * <p>
+     * A flush appends its records to the data file and only their index entries to the index delta file,
+     * so its cost grows with the records flushed, not with the table. The index and bloom filter files are
+     * rewritten with the delta merged in once it holds more than a quarter of the index entries, and on
+     * compaction or seal, which keeps the rewrites amortized over many flushes. Frequent small flushes still
+     * pay one fsync of the data file and one of the delta each.
+     * @param maxBytes       total size of pending records
+     * @param maxRecords     number of pending records
+     * @param intervalMillis time between flushes of pending records
+     * @return these options
+     */
+    public TableOptions backgroundFlush(long maxBytes, int maxRecords, long intervalMillis) {
+        this.flushMaxBytes = maxBytes;
+        this.flushMaxRecords = maxRecords;
+        this.flushIntervalMillis = intervalMillis;
+        return this;
+    }
+
+    /**
+     * Limits the rate at which flushes write to the data file.
+     * @param bytesPerSecond write rate, 0 for no limit
+     * @return these options
+     */
+    public TableOptions flushRateLimit(long bytesPerSecond) {
+        this.flushBytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    public long getFlushMaxBytes() {
+        return flushMaxBytes;
+    }
+
+    public int getFlushMaxRecords() {
+        return flushMaxRecords;
+    }
+
+    public long getFlushIntervalMillis() {
+        return flushIntervalMillis;
+    }
+
+    public long getFlushBytesPerSecond() {
+        return flushBytesPerSecond;
+    }
+
+    /**
+     * Enables background compaction, run by the background flusher after a flush. Compaction rewrites
+     * the data file without replaced versions and tombstones once both limits are exceeded.
+     * A higher space amplification lets more garbage pile up but rewrites live records less often.
+     * @param maxSpaceAmplification ratio of data file length to live data length, above 1
+     * @param minGarbageBytes       bytes taken by replaced versions and tombstones
+     * @return these options
+     */
+    public TableOptions compaction(double maxSpaceAmplification, long minGarbageBytes) {
+        if (maxSpaceAmplification <= 1) {
+            throw new IllegalArgumentException("Space amplification must be above 1: " + maxSpaceAmplification);
+        }
+        this.compactionSpaceAmplification = maxSpaceAmplification;
+        this.compactionMinGarbageBytes = minGarbageBytes;
+        return this;
+    }
+
+    /**
+     * Limits the rate at which compaction writes the new data file.
+     * @param bytesPerSecond write rate, 0 for no limit
+     * @return these options
+     */
+    public TableOptions compactionRateLimit(long bytesPerSecond) {
+        this.compactionBytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    public double getCompactionSpaceAmplification() {
+        return compactionSpaceAmplification;
+    }
+
+    public long getCompactionMinGarbageBytes() {
+        return compactionMinGarbageBytes;
+    }
+
+    public long getCompactionBytesPerSecond() {
+        return compactionBytesPerSecond;
+    }
+
+    /**
+     * Sets false positive rate of the bloom filter which rejects absent keys before the index is probed.
+     * A lower rate costs more memory, about 1.2 bytes per key at 1% and 1.8 bytes at 0.1%.
+     * @param falsePositiveRate probability that an absent key passes the filter, 0 disables the filter
+     * @return these options
+     */
+    public TableOptions bloomFilter(double falsePositiveRate) {
+        if (falsePositiveRate < 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("False positive rate must be in [0, 1): " + falsePositiveRate);
+        }
+        this.bloomFilterFalsePositiveRate = falsePositiveRate;
+        return this;
+    }
+
+    public double getBloomFilterFalsePositiveRate() {
+        return bloomFilterFalsePositiveRate;
+    }
+
+    /**
+     * Splits the table into segments. Once a flush leaves the data file at or above the size, the file is sealed
+     * with its index and bloom filter as an immutable, memory-mapped segment and a new data file is started.
+     * Lookups search the data file, then sealed segments from newest to oldest. Sealed segments are compacted
+     * one by one with the limits of {@link #compaction(double, long)}.
+     * @param maxBytes size at which the data file is sealed, 0 keeps a single data file
+     * @return these options
+     */
+    public TableOptions segmentSize(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Segment size must not be negative: " + maxBytes);
+        }
+        this.segmentSize = maxBytes;
+        return this;
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Sets the executor reading records for asynchronous lookups, see {@link Table#getRecordAsync(Object)}.
+     * By default each table starts its own, on virtual threads when the runtime has them, and stops it on close.
+     * @param executor executor running lookups which need I/O, null for the table's own
+     * @return these options
+     */
+    public TableOptions lookupExecutor(Executor executor) {
+        this.lookupExecutor = executor;
+        return this;
+    }
+
+    public Executor getLookupExecutor() {
+        return lookupExecutor;
+    }
+
+    /**
+     * Keeps live keys sorted in memory next to the hash index, for range and prefix scans,
+     * see {@link Table#scan(Object, Object)} and {@link Table#prefix(String)}. Keys must be {@link Comparable}.
+     * The keys are collected when the table is opened, which reads the whole table once.
+     * @param enabled true to keep the sorted keys
+     * @return these options
+     */
+    public TableOptions orderedIndex(boolean enabled) {
+        this.orderedIndex = enabled;
+        return this;
+    }
+
+    public boolean isOrderedIndex() {
+        return orderedIndex;
+    }
+
+    /**
+     * Checks record checksums of all data files when the table is opened, see {@link Table#verify()}.
+     * A data file is truncated before its first corrupted record and its index is rebuilt; without the check
+     * only data past the last flush and files without an index are checked.
+     * @param enabled true to check the whole table on open
+     * @return these options
+     */
+    public TableOptions verifyOnOpen(boolean enabled) {
+        this.verifyOnOpen = enabled;
+        return this;
+    }
+
+    public boolean isVerifyOnOpen() {
+        return verifyOnOpen;
+    }
+
+    /**
+     * Checks whether any background flush trigger is set.
+     * @return true if the table runs a background flusher
+     */
+    public boolean isBackgroundFlush() {
+        return flushMaxBytes > 0 || flushMaxRecords > 0 || flushIntervalMillis > 0;
+    }
+}
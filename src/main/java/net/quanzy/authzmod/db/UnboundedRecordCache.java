@@ -0,0 +1,99 @@
+package net.quanzy.authzmod.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Cache keeping every loaded record. Absent keys are not remembered.
+ */
+class UnboundedRecordCache<KEY, RECORD extends AbstractRecord<KEY>> implements RecordCache<KEY, RECORD> {
+    private final ConcurrentHashMap<KEY, RECORD> records = new ConcurrentHashMap<>();
+    private final LoadStamps stamps = new LoadStamps();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    @Override
+    public RECORD get(KEY key, Function<KEY, RECORD> loader) {
+        RECORD result = records.get(key);
+        if (result != null) {
+            hits.increment();
+            return result;
+        }
+        misses.increment();
+        long stamp = stamps.get(key);
+        result = loader.apply(key);
+        if (result != null && stamps.isCurrent(key, stamp)) {
+            records.putIfAbsent(key, result);
+        }
+        return result;
+    }
+
+    @Override
+    public RECORD getIfPresent(KEY key) {
+        RECORD result = records.get(key);
+        if (result != null) {
+            hits.increment();
+        }
+        return result;
+    }
+
+    @Override
+    public Map<KEY, RECORD> getAll(Collection<KEY> keys, Function<Collection<KEY>, Map<KEY, RECORD>> loader) {
+        Map<KEY, RECORD> result = new HashMap<>(keys.size() * 4 / 3 + 1);
+        List<KEY> missing = new ArrayList<>();
+        for (KEY key : keys) {
+            RECORD cached = records.get(key);
+            if (cached != null) {
+                result.put(key, cached);
+            } else {
+                missing.add(key);
+            }
+        }
+        hits.add(result.size());
+        if (missing.isEmpty()) {
+            return result;
+        }
+        misses.add(missing.size());
+        long[] loadStamps = new long[missing.size()];
+        for (int i = 0; i < loadStamps.length; i++) {
+            loadStamps[i] = stamps.get(missing.get(i));
+        }
+        Map<KEY, RECORD> loaded = loader.apply(missing);
+        for (int i = 0; i < loadStamps.length; i++) {
+            KEY key = missing.get(i);
+            RECORD record = loaded.get(key);
+            if (record != null && stamps.isCurrent(key, loadStamps[i])) {
+                records.putIfAbsent(key, record);
+            }
+        }
+        result.putAll(loaded);
+        return result;
+    }
+
+    @Override
+    public void invalidate(KEY key) {
+        stamps.invalidate(key);
+        records.remove(key);
+    }
+
+    @Override
+    public void invalidateAll() {
+        stamps.invalidateAll();
+        records.clear();
+    }
+
+    @Override
+    public CacheStats stats() {
+        long weight = 0;
+        for (RECORD record : records.values()) {
+            weight += record.getSize();
+        }
+        return new CacheStats(hits.sum(), 0, misses.sum(), 0, records.size(), weight);
+    }
+}
@@ -0,0 +1,171 @@
+package net.quanzy.authzmod.db.operations
+
+import org.slf4j.LoggerFactory
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import kotlin.math.ceil
+import kotlin.math.ln
+import kotlin.math.roundToInt
+
+/**
+ * Bloom filter over key hashes of an index, answering "definitely absent" without touching the index.
+ *
+ * Bits are derived from the 32-bit hash stored in the index (see [OffsetIndex.hash]), so the filter is built
+ * from index entries alone. Probe positions come from double hashing and are reduced to the bit range
+ * by multiply-shift, so any bit count works without rounding up to a power of two.
+ *
+ * Layout, big-endian:
+ * ```
+ * header: int magic | int version | int hashCount | int reserved | long bitCount | long dataLength
+ * bits:   bitCount / 64 longs, rounded up
+ * ```
+ * `dataLength` matches the index the filter was built from; a filter with another length is stale.
+ */
+class BloomFilter private constructor(
+    private val bits: ByteBuffer,
+    private val bitCount: Long,
+    private val hashCount: Int,
+    val dataLength: Long
+) {
+
+    /**
+     * Sets the bits of a key hash. Not safe for concurrent use, filters are built before they are published.
+     */
+    fun add(hash: Int) {
+        val step = secondHash(hash)
+        var combined = hash
+        for (i in 0 until hashCount) {
+            val bit = position(combined)
+            val word = (bit ushr 6).toInt() * Long.SIZE_BYTES
+            bits.putLong(word, bits.getLong(word) or (1L shl bit.toInt()))
+            combined += step
+        }
+    }
+
+    /**
+     * Checks whether a key hash may have been added.
+     *
+     * @return false if the hash was definitely not added
+     */
+    fun mightContain(hash: Int): Boolean {
+        val step = secondHash(hash)
+        var combined = hash
+        for (i in 0 until hashCount) {
+            val bit = position(combined)
+            if (bits.getLong((bit ushr 6).toInt() * Long.SIZE_BYTES) and (1L shl bit.toInt()) == 0L) {
+                return false
+            }
+            combined += step
+        }
+        return true
+    }
+
+    /**
+     * Size of the bit array in bytes.
+     */
+    fun memoryUsage(): Long = bits.capacity().toLong()
+
+    private fun position(combined: Int): Long = ((combined.toLong() and 0xFFFFFFFFL) * bitCount) ushr 32
+
+    /**
+     * Atomically writes the filter file through a temporary file. Like the index, a filter which may still be
+     * mapped is not replaced, it gets written under a new version.
+     *
+     * @param file       filter file
+     * @param dataLength length of the data file covered by the index the filter was built from
+     */
+    @Throws(IOException::class)
+    fun write(file: File, dataLength: Long) {
+        val tempFile = File(file.absolutePath + ".tmp")
+        FileChannel.open(tempFile.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
+        ).use { channel ->
+            val header = ByteBuffer.allocate(HEADER_SIZE)
+                .putInt(MAGIC).putInt(VERSION).putInt(hashCount).putInt(0)
+                .putLong(bitCount).putLong(dataLength)
+                .flip()
+            while (header.hasRemaining()) {
+                channel.write(header)
+            }
+            val contents = bits.duplicate().clear()
+            while (contents.hasRemaining()) {
+                channel.write(contents)
+            }
+            channel.force(true)
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        logger.debug("Wrote bloom filter {} with {} bits and {} hashes", file.absolutePath, bitCount, hashCount)
+    }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(BloomFilter::class.java)
+
+        const val MAGIC = 0x415A4246 // "AZBF"
+        const val VERSION = 1
+        const val HEADER_SIZE = 32
+        private const val MAX_BIT_COUNT = Int.MAX_VALUE.toLong()
+
+        /**
+         * Creates an empty filter sized for the expected number of keys.
+         *
+         * @param expectedSize      number of keys to be added
+         * @param falsePositiveRate wanted probability that an absent key is reported as present
+         */
+        @JvmStatic
+        fun create(expectedSize: Int, falsePositiveRate: Double): BloomFilter {
+            require(falsePositiveRate > 0 && falsePositiveRate < 1) { "False positive rate must be in (0, 1): $falsePositiveRate" }
+            val keys = maxOf(expectedSize, 1)
+            val wanted = ceil(-keys * ln(falsePositiveRate) / (ln(2.0) * ln(2.0))).toLong()
+            val bitCount = wanted.coerceIn(Long.SIZE_BITS.toLong(), MAX_BIT_COUNT)
+            val hashCount = (bitCount.toDouble() / keys * ln(2.0)).roundToInt().coerceIn(1, 16)
+            val words = ((bitCount + Long.SIZE_BITS - 1) / Long.SIZE_BITS).toInt()
+            return BloomFilter(ByteBuffer.allocate(words * Long.SIZE_BYTES), bitCount, hashCount, 0)
+        }
+
+        /**
+         * Maps a filter file written by [write] for the given data. The header is checked before anything is mapped,
+         * so a stale or corrupted filter can be rewritten right away, also where mapped files cannot be replaced.
+         *
+         * @param dataLength length of the data file the filter has to cover
+         * @return the filter or null if the file is missing, not a filter or written for other data
+         */
+        @JvmStatic
+        @Throws(IOException::class)
+        fun open(file: File, dataLength: Long): BloomFilter? {
+            if (file.length() < HEADER_SIZE) return null
+            FileChannel.open(file.toPath(), StandardOpenOption.READ).use { channel ->
+                val header = ByteBuffer.allocate(HEADER_SIZE)
+                channel.read(header, 0)
+                if (header.getInt(0) != MAGIC || header.getInt(Int.SIZE_BYTES) != VERSION) {
+                    logger.warn("Ignoring bloom filter {} with unknown header", file.absolutePath)
+                    return null
+                }
+                val hashCount = header.getInt(8)
+                val bitCount = header.getLong(16)
+                val words = (bitCount + Long.SIZE_BITS - 1) / Long.SIZE_BITS
+                if (hashCount <= 0 || bitCount <= 0 || bitCount > MAX_BIT_COUNT ||
+                    HEADER_SIZE + words * Long.SIZE_BYTES != channel.size()) {
+                    logger.warn("Ignoring corrupted bloom filter {}", file.absolutePath)
+                    return null
+                }
+                if (header.getLong(24) != dataLength) {
+                    return null
+                }
+                val bits = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE.toLong(), words * Long.SIZE_BYTES)
+                return BloomFilter(bits.order(ByteOrder.BIG_ENDIAN), bitCount, hashCount, dataLength)
+            }
+        }
+
+        private fun secondHash(hash: Int): Int {
+            var h = hash * -0x61c88647
+            h = h xor (h ushr 15)
+            return h or 1
+        }
+    }
+}
@@ -6,99 +6,430 @@ import java.io.File
 import java.io.IOException
 import java.nio.ByteBuffer
 import java.nio.channels.FileChannel
-import java.nio.channels.SeekableByteChannel
-import java.nio.file.Files
 import java.nio.file.Paths
 import java.nio.file.StandardOpenOption
-import java.util.concurrent.atomic.AtomicLong
-import java.util.function.Consumer
+import java.util.concurrent.ForkJoinPool
+import java.util.function.Function
+import java.util.zip.CRC32C
 
-class DataOperations<RECORD : AbstractRecord<KEY>, KEY>(val recordClass: Class<RECORD>) {
+/**
+ * Reads and writes length-prefixed records of a data file.
+ *
+ * A record updated or deleted after it was written stays in the file: the newer version or a tombstone
+ * is appended, and the latest record of a key wins. Tombstones have [TOMBSTONE_FLAG] set in their length prefix.
+ *
+ * Records are framed as `int length | int crc32c | record bytes` with [CHECKSUM_FLAG] set in the length,
+ * the checksum covers the length prefix and the record. Files written before checksums hold frames without
+ * the flag and the checksum field, these are still read but cannot be verified. Scans and channel reads stop
+ * at a frame whose checksum does not match, like at a truncated one.
+ *
+ * @param recordFactory builds a record over its contents, see [AbstractRecord.factory]
+ */
+class DataOperations<RECORD : AbstractRecord<KEY>, KEY>(private val recordFactory: Function<ByteBuffer, RECORD>) {
+
+    constructor(recordClass: Class<RECORD>) : this(AbstractRecord.factory(recordClass))
 
     private val logger = LoggerFactory.getLogger(DataOperations::class.java)
 
+    private var writeBuffer: ByteBuffer? = null
+
+    /**
+     * Appends length-prefixed records at the current position of the channel.
+     * Records are packed into a direct buffer reused across flushes and drained in large writes,
+     * records larger than the buffer are written on their own.
+     *
+     * @param records  records to write
+     * @param channel  data file channel positioned at the end of committed data
+     * @param throttle limits the write rate, null for no limit
+     * @return offsets of written records and channel position after the last one
+     */
+    @JvmOverloads
     @Throws(IOException::class)
-    fun writeData(records: Collection<RECORD>, dataFile: File): FlushResult<KEY> {
-        val offsets: MutableMap<KEY, Long> = HashMap()
-        val tempFile = File.createTempFile("tmpdb-", ".db")
-        val currentOffset = AtomicLong(dataFile.length())
-        Files.newByteChannel(
-            Paths.get(tempFile.toURI()),
-            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
-        ).use { channel ->
-            records.forEach(Consumer { r: RECORD ->
-                offsets[r.getKey()] = currentOffset.get()
-                logger.trace("Setting offset for key {} to {}", r.getKey(), offsets.get(r.getKey()))
-                currentOffset.getAndAdd(writeRecord(channel, r))
-            })
+    fun writeData(records: Collection<RECORD>, channel: FileChannel, throttle: FlushThrottle? = null): FlushResult<KEY> {
+        val offsets: MutableMap<KEY, Long> = HashMap(records.size * 4 / 3 + 1)
+        val buffer = writeBuffer ?: ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).also { writeBuffer = it }
+        buffer.clear()
+        var position = channel.position()
+        val crc = CRC32C()
+        for (record in records) {
+            val length = record.length()
+            val header = header(length, record.isTombstone())
+            offsets[record.getKey()] = position
+            logger.trace("Setting offset for key {} to {}", record.getKey(), position)
+            position += FRAME_HEADER_SIZE + length
+            if (buffer.remaining() < FRAME_HEADER_SIZE + length) {
+                drain(buffer, channel, throttle)
+            }
+            if (buffer.remaining() < FRAME_HEADER_SIZE + length) {
+                val contents = record.contents()
+                buffer.putInt(header).putInt(checksum(crc, header, contents))
+                drain(buffer, channel, throttle)
+                while (contents.hasRemaining()) {
+                    channel.write(contents)
+                }
+                throttle?.acquire(length)
+            } else {
+                val start = buffer.position()
+                buffer.putInt(header).putInt(0)
+                record.writeTo(buffer)
+                buffer.putInt(start + Int.SIZE_BYTES,
+                    checksum(crc, header, buffer.slice(start + FRAME_HEADER_SIZE, length)))
+            }
         }
-        return FlushResult(tempFile, offsets)
+        drain(buffer, channel, throttle)
+        return FlushResult(offsets, position)
     }
 
-    fun writeRecord(channel: SeekableByteChannel, record: RECORD): Long {
-        try {
-            val length = record.length()
-            val recordSize = ByteBuffer.allocate(Int.SIZE_BYTES + length)
-            recordSize.putInt(length)
-            recordSize.put(record.contents())
-            channel.write(recordSize.flip())
-            return channel.position()
-        } catch (e: IOException) {
-            throw RuntimeException(e)
+    /**
+     * Copies records of a mapped data file to the current position of the channel, e.g. to compact the file.
+     * Tombstones stay tombstones, records written without a checksum get one.
+     *
+     * @param source   mapped data file
+     * @param offsets  offsets of the records to copy, in ascending order
+     * @param channel  channel of the target file
+     * @param throttle limits the write rate, null for no limit
+     * @return offsets of the copies in the target file, in the order of [offsets]
+     */
+    @Throws(IOException::class)
+    fun copyRecords(source: MappedDataFile, offsets: LongArray, channel: FileChannel, throttle: FlushThrottle?): LongArray {
+        val copied = LongArray(offsets.size)
+        val buffer = writeBuffer ?: ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).also { writeBuffer = it }
+        buffer.clear()
+        var position = channel.position()
+        val crc = CRC32C()
+        for (i in offsets.indices) {
+            val contents = source.recordAt(offsets[i])
+                ?: throw IOException("No record at offset ${offsets[i]}")
+            val length = contents.remaining()
+            val header = header(length, source.isTombstone(offsets[i]))
+            copied[i] = position
+            position += FRAME_HEADER_SIZE + length
+            if (buffer.remaining() < FRAME_HEADER_SIZE + length) {
+                drain(buffer, channel, throttle)
+            }
+            buffer.putInt(header).putInt(checksum(crc, header, contents))
+            if (buffer.remaining() < length) {
+                drain(buffer, channel, throttle)
+                while (contents.hasRemaining()) {
+                    channel.write(contents)
+                }
+                throttle?.acquire(length)
+            } else {
+                buffer.put(contents)
+            }
         }
+        drain(buffer, channel, throttle)
+        return copied
     }
 
+    private fun drain(buffer: ByteBuffer, channel: FileChannel, throttle: FlushThrottle?) {
+        buffer.flip()
+        val written = buffer.remaining()
+        while (buffer.hasRemaining()) {
+            channel.write(buffer)
+        }
+        buffer.clear()
+        throttle?.acquire(written)
+    }
+
+    /**
+     * Reads complete records starting at the given offset. Stops at a truncated or corrupted record.
+     */
+    @JvmOverloads
     @Throws(IOException::class)
-    fun readData(dataFile: File): Sequence<RecordReadResult<RECORD>> = sequence {
+    fun readData(dataFile: File, from: Long = 0): Sequence<RecordReadResult<RECORD>> = sequence {
         FileChannel.open(
             Paths.get(dataFile.toURI()),
             StandardOpenOption.READ
         ).use { channel ->
+            channel.position(from)
             while (channel.position() < channel.size()) {
                 val offset = channel.position()
-                val sizeBuffer = ByteBuffer.allocate(Int.SIZE_BYTES)
-                channel.read(sizeBuffer)
-                sizeBuffer.flip()
-                val recordSize = sizeBuffer.int
-                val recordBuffer = ByteBuffer.allocate(recordSize)
-                channel.read(recordBuffer)
-                recordBuffer.flip()
-                val record = readRecord(recordBuffer)
-                yield(RecordReadResult(record, offset))
+                val record = readRecord(channel) ?: break
+                yield(RecordReadResult(record, offset, channel.position()))
             }
         }
     }
 
-    @Suppress("UNCHECKED_CAST")
-    fun readRecord(buffer: ByteBuffer): RECORD {
-        return AbstractRecord.build<KEY, RECORD>(buffer, recordClass) as RECORD
+    /**
+     * Rebuilds offsets of all complete records of a data file without keeping the records.
+     * Record boundaries are found first by hopping over length prefixes, then ranges of whole records
+     * are verified and decoded on the common fork-join pool. Decoded offsets are merged in file order,
+     * so a later version of a key replaces the earlier one and a tombstone removes the key.
+     * Records from the first corrupted one on are left out.
+     *
+     * @param dataFile       data file
+     * @param parallel       decode parts of the file on the common fork-join pool
+     * @param keepTombstones keep tombstones in the offsets, so they hide the key in older segments
+     * @return offsets of the latest version of every key, length of the file up to the end of the last
+     * complete record, and number of bytes taken by older versions and dropped tombstones
+     */
+    @JvmOverloads
+    @Throws(IOException::class)
+    fun loadOffsets(dataFile: File, parallel: Boolean = false, keepTombstones: Boolean = false): LoadedOffsets {
+        val data = MappedDataFile(dataFile)
+        data.remap()
+        val parts = if (parallel && data.length >= MIN_SPLIT_SIZE) ForkJoinPool.getCommonPoolParallelism() else 1
+        val ranges = ArrayList<LongRange>(parts)
+        if (parts > 1) {
+            val target = data.length / parts
+            var rangeStart = 0L
+            val end = data.scan(0, data.length, false) { offset, _, _ ->
+                if (offset - rangeStart >= target) {
+                    ranges.add(rangeStart until offset)
+                    rangeStart = offset
+                }
+                true
+            }
+            ranges.add(rangeStart until end)
+        } else {
+            ranges.add(0L until data.length)
+        }
+        val parsed = ranges.parallelStream().map { range ->
+            val part = HashOffsets()
+            val end = data.scan(range.first, range.last + 1) { offset, contents, _ ->
+                part.add(OffsetIndex.hash(readRecord(contents).getKey() as Any), offset)
+                true
+            }
+            part to end
+        }.toList()
+        // a part ending early hit a corrupted record, records after it cannot be trusted
+        val valid = ranges.indices.firstOrNull { parsed[it].second <= ranges[it].last } ?: ranges.lastIndex
+        val decoded = parsed.subList(0, valid + 1)
+        val offsets = OffsetIndex(decoded.sumOf { it.first.size })
+        var garbageLength = 0L
+        var tombstones = 0
+        decoded.forEach { (part, _) ->
+            for (i in 0 until part.size) {
+                val offset = part.offsets[i]
+                // keys are read back only when hashes collide, which is rare unless the key was updated
+                val replaced = offsets.put(part.hashes[i], offset) { stored -> sameKey(data, stored, offset) }
+                if (replaced >= 0) {
+                    garbageLength += frameLength(data, replaced)
+                }
+                if (data.isTombstone(offset)) {
+                    tombstones++
+                }
+            }
+        }
+        if (tombstones == 0 || keepTombstones) {
+            return LoadedOffsets(offsets, decoded.last().second, garbageLength)
+        }
+        val live = offsets.filter { offset ->
+            val tombstone = data.isTombstone(offset)
+            if (tombstone) {
+                garbageLength += frameLength(data, offset)
+            }
+            !tombstone
+        }
+        return LoadedOffsets(live, decoded.last().second, garbageLength)
+    }
+
+    private fun sameKey(data: MappedDataFile, offset: Long, other: Long): Boolean =
+        readRecord(data.recordAt(offset)!!).getKey() == readRecord(data.recordAt(other)!!).getKey()
+
+    private fun frameLength(data: MappedDataFile, offset: Long): Long = data.frameLength(offset)
+
+    /**
+     * Checks the checksums of all records of a data file, streaming it through a memory mapping.
+     *
+     * @param dataFile data file
+     * @return length of the file up to the end of the last record before a corrupted or truncated one,
+     * the file length if all records are intact
+     */
+    @Throws(IOException::class)
+    fun verify(dataFile: File): Long {
+        val data = MappedDataFile(dataFile)
+        data.remap()
+        return data.scan(0, data.length) { _, _, _ -> true }
     }
 
+    /**
+     * Returns the length of the frame at the offset, 0 if there is no complete frame.
+     *
+     * @param channel data file channel, its position is not used
+     */
+    @Throws(IOException::class)
+    fun frameLength(channel: FileChannel, offset: Long): Long {
+        val buffer = ByteBuffer.allocate(Int.SIZE_BYTES)
+        while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) >= 0) {
+            // read until the length prefix is complete
+        }
+        if (buffer.hasRemaining()) return 0
+        val frameLength = frameLength(buffer.getInt(0))
+        return if (offset + frameLength <= channel.size()) frameLength else 0
+    }
+
+    /**
+     * Reads records at sorted offsets, coalescing offsets less than a page apart into one positional read.
+     * A record which does not fit the read is read on its own.
+     *
+     * @param channel data file channel, its position is not used
+     * @param offsets offsets of record length prefixes, in ascending order
+     * @return records in the order of [offsets], null where there is no complete and intact record
+     */
+    @Throws(IOException::class)
+    fun readRecords(channel: FileChannel, offsets: LongArray): List<RECORD?> {
+        val records = ArrayList<RECORD?>(offsets.size)
+        var buffer = ByteBuffer.allocate(0)
+        val crc = CRC32C()
+        var i = 0
+        while (i < offsets.size) {
+            val start = offsets[i]
+            var last = i
+            while (last + 1 < offsets.size && offsets[last + 1] - offsets[last] <= COALESCE_GAP &&
+                offsets[last + 1] - start <= MAX_COALESCED_READ) {
+                last++
+            }
+            val length = (offsets[last] - start + COALESCE_GAP).toInt()
+            if (buffer.capacity() < length) {
+                buffer = ByteBuffer.allocate(length)
+            }
+            buffer.clear().limit(length)
+            while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) >= 0) {
+                // read until the range is complete or the file ends
+            }
+            buffer.flip()
+            val end = start + buffer.limit()
+            while (i <= last) {
+                val offset = offsets[i++]
+                val position = (offset - start).toInt()
+                if (offset + Int.SIZE_BYTES > end) {
+                    records.add(null)
+                    continue
+                }
+                val header = buffer.getInt(position)
+                val recordSize = recordLength(header)
+                val prefix = headerSize(header)
+                val record = if (offset + prefix + recordSize > end) {
+                    readRecord(channel.position(offset))
+                } else if (prefix == Int.SIZE_BYTES || buffer.getInt(position + Int.SIZE_BYTES) ==
+                    checksum(crc, header, buffer.slice(position + prefix, recordSize))) {
+                    val contents = ByteBuffer.allocate(recordSize).put(buffer.slice(position + prefix, recordSize)).flip()
+                    readRecord(contents).also { if (header < 0) it.markTombstone() }
+                } else {
+                    logger.warn("Checksum mismatch of record at offset {}", offset)
+                    null
+                }
+                records.add(record)
+            }
+        }
+        return records
+    }
+
+    fun readRecord(buffer: ByteBuffer): RECORD = recordFactory.apply(buffer)
+
+    /**
+     * Reads the record at the position of the channel and moves past it.
+     *
+     * @return the record, null if the frame is truncated or its checksum does not match
+     */
     @Throws(IOException::class)
     fun readRecord(channel: FileChannel): RECORD? {
         var result: RECORD? = null
         if (channel.isOpen() && (channel.size() - channel.position()) > Integer.BYTES) {
-            val rsize = ByteBuffer.allocate(Integer.BYTES)
+            val offset = channel.position()
+            val rsize = ByteBuffer.allocate(FRAME_HEADER_SIZE).limit(Integer.BYTES)
             channel.read(rsize)
-            rsize.flip()
-            val recordSize = rsize.getInt()
-            if ((channel.size() - channel.position()) >= recordSize) {
+            val header = rsize.getInt(0)
+            val recordSize = recordLength(header)
+            if (headerSize(header) > Int.SIZE_BYTES) {
+                rsize.limit(FRAME_HEADER_SIZE)
+                while (rsize.hasRemaining() && channel.read(rsize) >= 0) {
+                    // read until the checksum is complete
+                }
+            }
+            if (!rsize.hasRemaining() && (channel.size() - channel.position()) >= recordSize) {
                 val recordBuffer = ByteBuffer.allocate(recordSize)
-                channel.read(recordBuffer)
+                while (recordBuffer.hasRemaining() && channel.read(recordBuffer) >= 0) {
+                    // read until the record is complete
+                }
                 recordBuffer.flip()
+                if (rsize.limit() > Int.SIZE_BYTES && rsize.getInt(Int.SIZE_BYTES) != checksum(CRC32C(), header, recordBuffer)) {
+                    logger.warn("Checksum mismatch of record at offset {}", offset)
+                    return null
+                }
                 result = readRecord(recordBuffer)
+                if (header < 0) {
+                    result.markTombstone()
+                }
             }
         }
         return result
     }
+
+    companion object {
+        /**
+         * Bit set in the length prefix of a tombstone.
+         */
+        const val TOMBSTONE_FLAG = Int.MIN_VALUE
+
+        /**
+         * Bit set in the length prefix of a frame with a checksum.
+         */
+        const val CHECKSUM_FLAG = 1 shl 30
+
+        /**
+         * Largest record a frame can hold, the length prefix bits left after the flags.
+         */
+        const val MAX_RECORD_LENGTH = CHECKSUM_FLAG - 1
+
+        /**
+         * Length prefix and checksum of frames written now.
+         */
+        const val FRAME_HEADER_SIZE = 2 * Int.SIZE_BYTES
+
+        @JvmStatic
+        fun header(length: Int, tombstone: Boolean): Int {
+            require(length <= MAX_RECORD_LENGTH) { "Record of $length bytes is too large" }
+            return if (tombstone) length or CHECKSUM_FLAG or TOMBSTONE_FLAG else length or CHECKSUM_FLAG
+        }
+
+        @JvmStatic
+        fun recordLength(header: Int): Int = header and MAX_RECORD_LENGTH
+
+        /**
+         * Bytes in front of the record, frames written before checksums have only the length prefix.
+         */
+        @JvmStatic
+        fun headerSize(header: Int): Int = if (header and CHECKSUM_FLAG != 0) FRAME_HEADER_SIZE else Int.SIZE_BYTES
+
+        @JvmStatic
+        fun frameLength(header: Int): Long = headerSize(header).toLong() + recordLength(header)
+
+        /**
+         * CRC32C of the length prefix followed by the record, the position of [contents] is kept.
+         */
+        @JvmStatic
+        fun checksum(checksum: CRC32C, header: Int, contents: ByteBuffer): Int {
+            checksum.reset()
+            checksum.update(header ushr 24)
+            checksum.update(header ushr 16)
+            checksum.update(header ushr 8)
+            checksum.update(header)
+            checksum.update(contents.duplicate())
+            return checksum.value.toInt()
+        }
+        private const val WRITE_BUFFER_SIZE = 1 shl 20
+        private const val MIN_SPLIT_SIZE = 1L shl 20
+        private const val COALESCE_GAP = 4096L
+        private const val MAX_COALESCED_READ = 1L shl 20
+    }
 }
 
 data class FlushResult<KEY>(
-    val dataFile: File,
-    val indexOffsets: Map<KEY, Long>
+    val indexOffsets: Map<KEY, Long>,
+    val dataLength: Long
+)
+
+data class LoadedOffsets(
+    val offsets: OffsetIndex,
+    val dataLength: Long,
+    val garbageLength: Long
 )
 
 data class RecordReadResult<RECORD>(
     val record: RECORD,
-    val offset: Long
+    val offset: Long,
+    val end: Long
 )
\ No newline at end of file
@@ -0,0 +1,47 @@
+package net.quanzy.authzmod.db.operations
+
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Limits the rate of flush writes, so a large flush does not take all disk bandwidth from lookups.
+ * Writers report written bytes and are parked once they run ahead of the allowed rate.
+ */
+class FlushThrottle(private val bytesPerSecond: Long) {
+
+    private var start = System.nanoTime()
+    private var bytes = 0L
+
+    init {
+        require(bytesPerSecond > 0) { "Rate must be positive, got $bytesPerSecond" }
+    }
+
+    /**
+     * Starts measuring a new flush.
+     */
+    fun begin() {
+        start = System.nanoTime()
+        bytes = 0
+    }
+
+    /**
+     * Accounts written bytes and waits until they fit into the rate.
+     */
+    fun acquire(written: Int) {
+        bytes += written
+        val wait = start + nanosFor(bytes) - System.nanoTime()
+        if (wait > 0) {
+            LockSupport.parkNanos(wait)
+        }
+    }
+
+    /**
+     * Time the bytes take at the allowed rate, split into whole seconds and the rest so the product does not
+     * overflow for flushes of more than a few gigabytes.
+     */
+    fun nanosFor(bytes: Long): Long =
+        bytes / bytesPerSecond * NANOS_PER_SECOND + bytes % bytesPerSecond * NANOS_PER_SECOND / bytesPerSecond
+
+    private companion object {
+        const val NANOS_PER_SECOND = 1_000_000_000L
+    }
+}
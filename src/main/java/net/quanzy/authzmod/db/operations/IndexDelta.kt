@@ -0,0 +1,130 @@
+package net.quanzy.authzmod.db.operations
+
+import org.slf4j.LoggerFactory
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardOpenOption
+import java.util.zip.CRC32C
+
+/**
+ * Append-only file of index entries flushed since the index file was written, so a flush writes only
+ * the entries of its own records instead of the whole index. Each flush appends one block, big-endian:
+ * ```
+ * int magic | long fromLength | long toLength | long garbageLength | int entryCount | int count
+ *     | count * (int hash | long offset) | int crc32c
+ * ```
+ * `fromLength` and `toLength` bound the data indexed by the block, `garbageLength` and `entryCount` describe
+ * the whole index once the block is applied. Blocks chain from the data length of the index file, blocks
+ * written before the index file are skipped. A torn or corrupted block ends the chain, the data it covered
+ * is indexed again from the data file.
+ */
+class IndexDelta(private val file: File) {
+
+    /**
+     * State of the index after the last block of the chain.
+     */
+    data class Coverage(val dataLength: Long, val garbageLength: Long, val entryCount: Int)
+
+    private val logger = LoggerFactory.getLogger(IndexDelta::class.java)
+
+    fun exists(): Boolean = file.exists()
+
+    /**
+     * Appends a block and forces it to disk.
+     *
+     * @param hashes  hashes of the entries
+     * @param offsets offsets of the entries
+     * @param count   number of entries taken from the arrays
+     */
+    @Throws(IOException::class)
+    fun append(fromLength: Long, toLength: Long, garbageLength: Long, entryCount: Int,
+               hashes: IntArray, offsets: LongArray, count: Int) {
+        val buffer = ByteBuffer.allocate(HEADER_SIZE + count * ENTRY_SIZE + Int.SIZE_BYTES)
+        buffer.putInt(MAGIC).putLong(fromLength).putLong(toLength).putLong(garbageLength)
+            .putInt(entryCount).putInt(count)
+        for (i in 0 until count) {
+            buffer.putInt(hashes[i]).putLong(offsets[i])
+        }
+        val crc = CRC32C()
+        crc.update(buffer.array(), 0, buffer.position())
+        buffer.putInt(crc.value.toInt()).flip()
+        FileChannel.open(file.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND
+        ).use { channel ->
+            while (buffer.hasRemaining()) {
+                channel.write(buffer)
+            }
+            channel.force(true)
+        }
+    }
+
+    /**
+     * Passes entries of the blocks chained from the data length of the index file to the consumer, in the order
+     * they were flushed, so a later entry of a key replaces an earlier one.
+     *
+     * @param baseLength data length covered by the index file
+     * @param consumer   receives every entry of the chain
+     * @return state after the last block of the chain, null if no block follows the index file
+     */
+    @Throws(IOException::class)
+    fun read(baseLength: Long, consumer: EntryConsumer): Coverage? {
+        if (!file.exists()) return null
+        // read to the heap, the file is deleted or appended to while it is in use
+        val buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()))
+        val crc = CRC32C()
+        var coverage: Coverage? = null
+        var covered = baseLength
+        var position = 0
+        while (position + HEADER_SIZE + Int.SIZE_BYTES <= buffer.limit()) {
+            val count = buffer.getInt(position + COUNT_POSITION)
+            val length = HEADER_SIZE + count.toLong() * ENTRY_SIZE
+            if (buffer.getInt(position) != MAGIC || count < 0 || position + length + Int.SIZE_BYTES > buffer.limit()) {
+                break
+            }
+            crc.reset()
+            crc.update(buffer.slice(position, length.toInt()))
+            if (crc.value.toInt() != buffer.getInt(position + length.toInt())) {
+                break
+            }
+            val fromLength = buffer.getLong(position + Int.SIZE_BYTES)
+            val toLength = buffer.getLong(position + Int.SIZE_BYTES + Long.SIZE_BYTES)
+            if (toLength > baseLength) {
+                if (fromLength != covered) break
+                for (i in 0 until count) {
+                    val entry = position + HEADER_SIZE + i * ENTRY_SIZE
+                    consumer.accept(buffer.getInt(entry), buffer.getLong(entry + Int.SIZE_BYTES))
+                }
+                covered = toLength
+                coverage = Coverage(toLength, buffer.getLong(position + GARBAGE_LENGTH_POSITION),
+                    buffer.getInt(position + ENTRY_COUNT_POSITION))
+            }
+            position += (length + Int.SIZE_BYTES).toInt()
+        }
+        if (position < buffer.limit()) {
+            logger.warn("Ignoring {} bytes of index delta {} after position {}",
+                buffer.limit() - position, file.absolutePath, position)
+        }
+        return coverage
+    }
+
+    /**
+     * Deletes the file once its entries are in the index file. Fails rather than leave blocks behind which
+     * could chain to a rewritten data file.
+     */
+    @Throws(IOException::class)
+    fun delete() {
+        Files.deleteIfExists(file.toPath())
+    }
+
+    companion object {
+        const val MAGIC = 0x415A4944 // "AZID"
+        private const val GARBAGE_LENGTH_POSITION = 20
+        private const val ENTRY_COUNT_POSITION = 28
+        private const val COUNT_POSITION = 32
+        private const val HEADER_SIZE = 36
+        private const val ENTRY_SIZE = Int.SIZE_BYTES + Long.SIZE_BYTES
+    }
+}
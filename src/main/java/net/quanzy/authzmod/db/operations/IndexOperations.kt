@@ -5,10 +5,12 @@ import net.quanzy.authzmod.db.findSerializerForClass
 import org.slf4j.LoggerFactory
 import java.io.File
 import java.io.IOException
+import java.nio.BufferUnderflowException
 import java.nio.ByteBuffer
-import java.nio.channels.ByteChannel
+import java.nio.MappedByteBuffer
 import java.nio.channels.FileChannel
 import java.nio.file.StandardOpenOption
+import java.util.concurrent.ForkJoinPool
 
 class IndexOperations<KEY>(clazz: Class<KEY>) {
     private val logger = LoggerFactory.getLogger(IndexOperations::class.java)
@@ -33,12 +35,11 @@ class IndexOperations<KEY>(clazz: Class<KEY>) {
 
     @Throws(IOException::class)
     private fun writeIndexRecord(key: KEY, offset: Long, indexChannel: FileChannel) {
-        val keyBuffer = serializer.serialize(key)
-        val recordSize = Int.SIZE_BYTES + Long.SIZE_BYTES + keyBuffer.capacity()
+        val recordSize = Int.SIZE_BYTES + Long.SIZE_BYTES + serializer.serializedSize(key)
         val buffer = ByteBuffer.allocate(recordSize)
         buffer.putInt(recordSize)
         buffer.putLong(offset)
-        buffer.put(keyBuffer)
+        serializer.write(key, buffer)
         val toWrite = buffer.flip()
         var totalWritten = 0
         while (buffer.hasRemaining()) {
@@ -49,33 +50,141 @@ class IndexOperations<KEY>(clazz: Class<KEY>) {
         logger.trace("Wrote {} bytes for index entry for key {} at offset {}, recordSize {}", totalWritten, key, offset, recordSize)
     }
 
-    fun readIndex(file: File): Map<KEY, Long> {
+    /**
+     * Reads all entries of an index file written by [writeIndex].
+     *
+     * @param file     index file
+     * @param parallel decode parts of the file on the common fork-join pool
+     * @return offsets by key
+     */
+    @JvmOverloads
+    fun readIndex(file: File, parallel: Boolean = false): Map<KEY, Long> {
         FileChannel.open(file.toPath(), StandardOpenOption.READ).use { channel ->
-            val keyOffsets = mutableMapOf<KEY, Long>()
-            while (channel.position() < channel.size()) {
-                readIndexRecord(channel, keyOffsets)
-            }
+            val ranges = split(channel, if (parallel) ForkJoinPool.getCommonPoolParallelism() else 1)
+            val parts = ranges.parallelStream().map { range ->
+                val part = HashMap<KEY, Long>()
+                decode(channel, range.first, range.last) { key, offset -> part[key] = offset }
+                part
+            }.toList()
+            if (parts.size == 1) return parts[0]
+            val keyOffsets = HashMap<KEY, Long>(parts.sumOf { it.size } * 4 / 3 + 1)
+            parts.forEach { keyOffsets.putAll(it) }
             return keyOffsets
         }
     }
 
-    @Throws(IOException::class)
-    private fun readIndexRecord(channel: ByteChannel, offsets: MutableMap<KEY, Long>): Int {
-        val rsize = ByteBuffer.allocate(Int.SIZE_BYTES)
-        channel.read(rsize)
-        rsize.position(0)
-        val recordSize = rsize.getInt()
-        val offsetBuffer = ByteBuffer.allocate(Long.SIZE_BYTES)
-        channel.read(offsetBuffer)
-        offsetBuffer.flip()
-        val offset = offsetBuffer.getLong()
-        val dataSize = recordSize - (Int.SIZE_BYTES + Long.SIZE_BYTES) // subtract size of recordSize and offset
-        val recordBuffer = ByteBuffer.allocate(dataSize)
-        channel.read(recordBuffer)
-        recordBuffer.flip()
-        val key = serializer.read(recordBuffer)
-        offsets[key] = offset
-        return recordSize
+    /**
+     * Reads all entries of an index file written by [writeIndex] straight into an [OffsetIndex],
+     * without building a map of keys.
+     *
+     * @param file     index file
+     * @param parallel decode parts of the file on the common fork-join pool
+     * @return offsets by key hash
+     */
+    @JvmOverloads
+    fun loadOffsets(file: File, parallel: Boolean = false): OffsetIndex {
+        FileChannel.open(file.toPath(), StandardOpenOption.READ).use { channel ->
+            val ranges = split(channel, if (parallel) ForkJoinPool.getCommonPoolParallelism() else 1)
+            val parts = ranges.parallelStream().map { range ->
+                val part = HashOffsets()
+                decode(channel, range.first, range.last) { key, offset -> part.add(OffsetIndex.hash(key as Any), offset) }
+                part
+            }.toList()
+            val offsets = OffsetIndex(parts.sumOf { it.size })
+            parts.forEach { part ->
+                for (i in 0 until part.size) {
+                    offsets.add(part.hashes[i], part.offsets[i])
+                }
+            }
+            return offsets
+        }
+    }
+
+    /**
+     * Splits the file into at most [parts] ranges of whole entries by hopping over entry sizes.
+     */
+    private fun split(channel: FileChannel, parts: Int): List<LongRange> {
+        val size = channel.size()
+        if (parts <= 1 || size < MIN_SPLIT_SIZE) {
+            return listOf(0L until size)
+        }
+        val target = size / parts
+        val ranges = ArrayList<LongRange>(parts)
+        var rangeStart = 0L
+        val end = scan(channel, 0, size) { window, windowStart, position, _ ->
+            val entryStart = windowStart + position
+            if (entryStart - rangeStart >= target) {
+                ranges.add(rangeStart until entryStart)
+                rangeStart = entryStart
+            }
+            window.getInt(position)
+        }
+        ranges.add(rangeStart until end)
+        return ranges
     }
 
-}
\ No newline at end of file
+    /**
+     * Decodes entries between [start] and [endInclusive], passing keys and offsets to the sink.
+     * Decoding stops at an entry whose key does not fit it.
+     */
+    private fun decode(channel: FileChannel, start: Long, endInclusive: Long, sink: (KEY, Long) -> Unit) {
+        scan(channel, start, endInclusive + 1) { window, windowStart, position, recordSize ->
+            val offset = window.getLong(position + Int.SIZE_BYTES)
+            window.limit(position + recordSize).position(position + ENTRY_HEADER_SIZE)
+            val key = try {
+                serializer.read(window)
+            } catch (e: BufferUnderflowException) {
+                logger.warn("Malformed key in index entry at position {}, ignoring the rest of the index",
+                    windowStart + position)
+                return@scan 0
+            } finally {
+                window.limit(window.capacity())
+            }
+            sink(key, offset)
+            recordSize
+        }
+    }
+
+    /**
+     * Walks entries of the file between [start] and [end] through memory-mapped windows.
+     * The visitor gets the window, its file position, entry position in the window and the entry size,
+     * and returns the size of the entry, or 0 to stop. Scanning stops at the first truncated or malformed entry.
+     *
+     * @return file position after the last complete entry
+     */
+    private inline fun scan(channel: FileChannel, start: Long, end: Long,
+                            visitor: (MappedByteBuffer, Long, Int, Int) -> Int): Long {
+        var windowStart = start
+        while (windowStart < end) {
+            val windowLength = minOf(WINDOW_SIZE.toLong(), end - windowStart).toInt()
+            val window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowLength.toLong())
+            var position = 0
+            while (position + ENTRY_HEADER_SIZE <= windowLength) {
+                val recordSize = window.getInt(position)
+                if (recordSize < ENTRY_HEADER_SIZE + Int.SIZE_BYTES) {
+                    logger.warn("Malformed index entry of size {} at position {}, ignoring the rest of the index",
+                        recordSize, windowStart + position)
+                    return windowStart + position
+                }
+                if (position + recordSize > windowLength) break
+                val entrySize = visitor(window, windowStart, position, recordSize)
+                if (entrySize <= 0) return windowStart + position
+                position += entrySize
+            }
+            val lastWindow = windowStart + windowLength >= end
+            if (position == 0 || (lastWindow && position < windowLength)) {
+                logger.warn("Truncated index entry at position {}, ignoring {} trailing bytes",
+                    windowStart + position, end - windowStart - position)
+                return windowStart + position
+            }
+            windowStart += position
+        }
+        return windowStart
+    }
+
+    companion object {
+        private const val ENTRY_HEADER_SIZE = Int.SIZE_BYTES + Long.SIZE_BYTES
+        private const val WINDOW_SIZE = 64 shl 20
+        private const val MIN_SPLIT_SIZE = 1L shl 20
+    }
+}
@@ -0,0 +1,215 @@
+package net.quanzy.authzmod.db.operations
+
+import org.slf4j.LoggerFactory
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util.zip.CRC32C
+
+/**
+ * Read-only memory mapping of a data file split into fixed-size segments.
+ *
+ * Full segments are mapped once and kept, only the trailing segment is remapped when the file grows,
+ * so [remap] after a flush costs one `mmap` call. Records are sliced straight out of the mapping;
+ * a record crossing a segment boundary is the only case that is copied.
+ */
+class MappedDataFile @JvmOverloads constructor(private val file: File, private val segmentSize: Int = DEFAULT_SEGMENT_SIZE) {
+
+    private class Mapping(val segments: Array<MappedByteBuffer>, val length: Long)
+
+    private val logger = LoggerFactory.getLogger(MappedDataFile::class.java)
+
+    @Volatile
+    private var mapping = Mapping(emptyArray(), 0)
+
+    @Volatile
+    private var sealed = false
+
+    /**
+     * Number of bytes of the data file currently visible through the mapping.
+     */
+    val length: Long
+        get() = mapping.length
+
+    /**
+     * Maps the part of the file appended since the last call.
+     */
+    @Synchronized
+    @Throws(IOException::class)
+    fun remap() {
+        if (sealed) return
+        val current = mapping
+        FileChannel.open(file.toPath(), StandardOpenOption.READ).use { channel ->
+            val size = channel.size()
+            if (size == current.length) return
+            val fullSegments = if (size < current.length) 0 else (current.length / segmentSize).toInt()
+            val segments = ArrayList<MappedByteBuffer>(((size + segmentSize - 1) / segmentSize).toInt())
+            for (i in 0 until fullSegments) {
+                segments.add(current.segments[i])
+            }
+            var start = fullSegments.toLong() * segmentSize
+            while (start < size) {
+                val length = minOf(segmentSize.toLong(), size - start)
+                segments.add(channel.map(FileChannel.MapMode.READ_ONLY, start, length))
+                start += length
+            }
+            // mappings stay valid after the channel is closed
+            mapping = Mapping(segments.toTypedArray(), size)
+            logger.trace("Remapped {} to {} bytes in {} segments", file.absolutePath, size, segments.size)
+        }
+    }
+
+    /**
+     * Keeps the current mapping for good, [remap] does nothing afterwards. Called once the file is moved away
+     * from its path, which may then name another file, so a read past the mapping finds no record instead of
+     * mapping the other file.
+     */
+    @Synchronized
+    fun seal() {
+        sealed = true
+    }
+
+    /**
+     * Cuts the file at the given length. Segments reaching past it are dropped from the mapping first,
+     * under the same lock as [remap], so no mapping of this file covers the part cut off.
+     */
+    @Synchronized
+    @Throws(IOException::class)
+    fun truncate(length: Long) {
+        val current = mapping
+        val kept = (minOf(length, current.length) / segmentSize).toInt()
+        mapping = Mapping(current.segments.sliceArray(0 until kept), kept.toLong() * segmentSize)
+        FileChannel.open(file.toPath(), StandardOpenOption.WRITE).use { channel ->
+            if (channel.size() > length) {
+                channel.truncate(length)
+            }
+        }
+    }
+
+    /**
+     * Returns contents of the length-prefixed record starting at the given offset.
+     * The checksum is not checked, offsets come from an index built by a [scan], which checks it.
+     *
+     * @param offset offset of the record length prefix
+     * @return record contents or null if there is no complete record at the offset
+     */
+    @Throws(IOException::class)
+    fun recordAt(offset: Long): ByteBuffer? {
+        val current = mappingFor(offset)
+        if (offset < 0 || offset + Int.SIZE_BYTES > current.length) return null
+        val header = getInt(current, offset)
+        val start = offset + DataOperations.headerSize(header)
+        val recordSize = DataOperations.recordLength(header)
+        if (start + recordSize > current.length) return null
+        return slice(current, start, recordSize)
+    }
+
+    /**
+     * Returns the length of the frame starting at the given offset, length prefix and checksum included.
+     *
+     * @return frame length or 0 if there is no complete record at the offset
+     */
+    @Throws(IOException::class)
+    fun frameLength(offset: Long): Long {
+        val current = mappingFor(offset)
+        if (offset < 0 || offset + Int.SIZE_BYTES > current.length) return 0
+        val frameLength = DataOperations.frameLength(getInt(current, offset))
+        return if (offset + frameLength <= current.length) frameLength else 0
+    }
+
+    /**
+     * Checks whether the record starting at the given offset is a tombstone, see [DataOperations.TOMBSTONE_FLAG].
+     */
+    @Throws(IOException::class)
+    fun isTombstone(offset: Long): Boolean {
+        val current = mappingFor(offset)
+        return offset >= 0 && offset + Int.SIZE_BYTES <= current.length && getInt(current, offset) < 0
+    }
+
+    private fun mappingFor(offset: Long): Mapping {
+        if (offset + Int.SIZE_BYTES > mapping.length) {
+            remap()
+        }
+        return mapping
+    }
+
+    /**
+     * Walks length-prefixed records between two offsets in file order, slicing each out of the mapping.
+     * Stops at a truncated record, at a record whose checksum does not match, or when the visitor returns false.
+     *
+     * @param from    offset of the first record
+     * @param to      offset where the scan ends, bounded by the mapped length
+     * @param verify  check checksums, off only to hop over records
+     * @param visitor called with offset and contents of each record, tombstones included
+     * @return offset right after the last visited record
+     */
+    @JvmOverloads
+    fun scan(from: Long, to: Long, verify: Boolean = true, visitor: RecordSink): Long {
+        val current = mapping
+        val end = minOf(to, current.length)
+        val checksum = CRC32C()
+        var offset = from
+        while (offset + Int.SIZE_BYTES <= end) {
+            val header = getInt(current, offset)
+            val recordSize = DataOperations.recordLength(header)
+            val start = offset + DataOperations.headerSize(header)
+            if (start + recordSize > end) break
+            val contents = slice(current, start, recordSize)
+            if (verify && start - offset > Int.SIZE_BYTES &&
+                getInt(current, offset + Int.SIZE_BYTES) != DataOperations.checksum(checksum, header, contents)) {
+                logger.warn("Checksum mismatch of record at offset {} in {}", offset, file.absolutePath)
+                break
+            }
+            val proceed = visitor.accept(offset, contents, header < 0)
+            offset = start + recordSize
+            if (!proceed) break
+        }
+        return offset
+    }
+
+    private fun slice(current: Mapping, start: Long, size: Int): ByteBuffer {
+        val index = (start / segmentSize).toInt()
+        val position = (start % segmentSize).toInt()
+        val segment = current.segments[index]
+        if (position + size <= segment.limit()) {
+            return segment.slice(position, size)
+        }
+        val copy = ByteBuffer.allocate(size)
+        for (i in 0 until size) {
+            copy.put(getByte(current, start + i))
+        }
+        return copy.flip()
+    }
+
+    private fun getInt(current: Mapping, offset: Long): Int {
+        val index = (offset / segmentSize).toInt()
+        val position = (offset % segmentSize).toInt()
+        val segment = current.segments[index]
+        if (position + Int.SIZE_BYTES <= segment.limit()) {
+            return segment.getInt(position)
+        }
+        var value = 0
+        for (i in 0 until Int.SIZE_BYTES) {
+            value = (value shl 8) or (getByte(current, offset + i).toInt() and 0xFF)
+        }
+        return value
+    }
+
+    private fun getByte(current: Mapping, offset: Long): Byte {
+        return current.segments[(offset / segmentSize).toInt()].get((offset % segmentSize).toInt())
+    }
+
+    companion object {
+        const val DEFAULT_SEGMENT_SIZE = 1 shl 30
+    }
+}
+
+fun interface RecordSink {
+    /**
+     * @return false to stop the scan
+     */
+    fun accept(offset: Long, contents: ByteBuffer, tombstone: Boolean): Boolean
+}
@@ -0,0 +1,188 @@
+package net.quanzy.authzmod.db.operations
+
+import org.slf4j.LoggerFactory
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.function.LongPredicate
+
+/**
+ * Read-only view of an index file in the hashed slot format, probed in place through a memory mapping.
+ *
+ * Layout, big-endian:
+ * ```
+ * header: int magic | int version | int slotCount | int entryCount | long dataLength | long garbageLength
+ * slots:  slotCount * (int hash | long offset + 1), offset 0 marks an empty slot
+ * ```
+ * Slots are laid out exactly as in [OffsetIndex] with linear probing, so lookups follow the same path.
+ * `dataLength` is the length of the data file covered by the index, `garbageLength` the part of it taken
+ * by replaced versions and tombstones. Files written before updates existed have 0 there.
+ */
+class MappedIndex private constructor(private val buffer: MappedByteBuffer) : HashedOffsets {
+
+    private val slotCount = buffer.getInt(SLOT_COUNT_POSITION)
+    private val mask = slotCount - 1
+
+    val entryCount: Int = buffer.getInt(ENTRY_COUNT_POSITION)
+
+    val dataLength: Long = buffer.getLong(DATA_LENGTH_POSITION)
+
+    val garbageLength: Long = buffer.getLong(GARBAGE_LENGTH_POSITION)
+
+    /**
+     * Finds offset of a key.
+     *
+     * @param hash    hash of the key, see [OffsetIndex.hash]
+     * @param matches called with every offset stored under the same hash until it returns true
+     * @return offset accepted by the predicate or -1
+     */
+    override fun get(hash: Int, matches: LongPredicate): Long {
+        if (entryCount == 0) return -1
+        var slot = hash and mask
+        while (true) {
+            val position = HEADER_SIZE + slot * SLOT_SIZE
+            val stored = buffer.getLong(position + Int.SIZE_BYTES)
+            if (stored == 0L) return -1
+            if (buffer.getInt(position) == hash && matches.test(stored - 1)) {
+                return stored - 1
+            }
+            slot = (slot + 1) and mask
+        }
+    }
+
+    /**
+     * Calls the consumer with hash and offset of every entry.
+     */
+    override fun forEach(consumer: EntryConsumer) {
+        for (slot in 0 until slotCount) {
+            val position = HEADER_SIZE + slot * SLOT_SIZE
+            val stored = buffer.getLong(position + Int.SIZE_BYTES)
+            if (stored != 0L) {
+                consumer.accept(buffer.getInt(position), stored - 1)
+            }
+        }
+    }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(MappedIndex::class.java)
+
+        const val MAGIC = 0x415A4958 // "AZIX"
+        const val VERSION = 2
+        const val HEADER_SIZE = 32
+        private const val SLOT_SIZE = Int.SIZE_BYTES + Long.SIZE_BYTES
+        private const val SLOT_COUNT_POSITION = 8
+        private const val ENTRY_COUNT_POSITION = 12
+        private const val DATA_LENGTH_POSITION = 16
+        private const val GARBAGE_LENGTH_POSITION = 24
+
+        /**
+         * Checks whether the file starts with the header of this format.
+         * Files written by [IndexOperations.writeIndex] have no header.
+         */
+        @JvmStatic
+        @Throws(IOException::class)
+        fun isMappedIndex(file: File): Boolean {
+            if (file.length() < HEADER_SIZE) return false
+            FileChannel.open(file.toPath(), StandardOpenOption.READ).use { channel ->
+                val header = ByteBuffer.allocate(Int.SIZE_BYTES)
+                channel.read(header, 0)
+                return header.flip().int == MAGIC
+            }
+        }
+
+        /**
+         * Reads the length of the data covered by an index file from its header, without mapping the file.
+         *
+         * @return the data length, -1 if the file is missing or not an index of this format
+         */
+        @JvmStatic
+        @Throws(IOException::class)
+        fun readDataLength(file: File): Long {
+            if (file.length() < HEADER_SIZE) return -1
+            FileChannel.open(file.toPath(), StandardOpenOption.READ).use { channel ->
+                val header = ByteBuffer.allocate(HEADER_SIZE)
+                channel.read(header, 0)
+                return if (header.getInt(0) == MAGIC) header.getLong(DATA_LENGTH_POSITION) else -1
+            }
+        }
+
+        /**
+         * Maps an index file written by [write].
+         */
+        @JvmStatic
+        @Throws(IOException::class)
+        fun open(file: File): MappedIndex {
+            FileChannel.open(file.toPath(), StandardOpenOption.READ).use { channel ->
+                val buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                buffer.order(ByteOrder.BIG_ENDIAN)
+                if (buffer.getInt(0) != MAGIC) {
+                    throw IOException("Not a mapped index file: ${file.absolutePath}")
+                }
+                val version = buffer.getInt(Int.SIZE_BYTES)
+                if (version != VERSION) {
+                    throw IOException("Unsupported index version $version in ${file.absolutePath}")
+                }
+                val slotCount = buffer.getInt(SLOT_COUNT_POSITION)
+                if (slotCount <= 0 || Integer.bitCount(slotCount) != 1 ||
+                    HEADER_SIZE + slotCount.toLong() * SLOT_SIZE != channel.size()) {
+                    throw IOException("Corrupted index header in ${file.absolutePath}")
+                }
+                return MappedIndex(buffer)
+            }
+        }
+
+        /**
+         * Atomically writes the entries of the given index to the index file through a temporary file.
+         * Files which may still be mapped are not replaced, the table writes each index under a new version.
+         *
+         * @param file          index file
+         * @param index         entries to write
+         * @param dataLength    length of the data file covered by the entries
+         * @param garbageLength bytes of the covered data taken by replaced versions and tombstones
+         */
+        @JvmStatic
+        @JvmOverloads
+        @Throws(IOException::class)
+        fun write(file: File, index: OffsetIndex, dataLength: Long, garbageLength: Long = 0) {
+            val tempFile = File(file.absolutePath + ".tmp")
+            FileChannel.open(tempFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
+            ).use { channel ->
+                val buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE)
+                buffer.putInt(MAGIC)
+                buffer.putInt(VERSION)
+                buffer.putInt(index.slotCount())
+                buffer.putInt(index.size())
+                buffer.putLong(dataLength)
+                buffer.putLong(garbageLength)
+                index.forEachSlot { hash, stored ->
+                    if (buffer.remaining() < SLOT_SIZE) {
+                        drain(buffer, channel)
+                    }
+                    buffer.putInt(hash)
+                    buffer.putLong(stored)
+                }
+                drain(buffer, channel)
+                channel.force(true)
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+            logger.debug("Wrote index file {} with {} entries in {} slots", file.absolutePath, index.size(), index.slotCount())
+        }
+
+        private fun drain(buffer: ByteBuffer, channel: FileChannel) {
+            buffer.flip()
+            while (buffer.hasRemaining()) {
+                channel.write(buffer)
+            }
+            buffer.clear()
+        }
+
+        private const val WRITE_BUFFER_SIZE = 1 shl 20
+    }
+}
@@ -0,0 +1,237 @@
+package net.quanzy.authzmod.db.operations
+
+import java.util.function.LongPredicate
+
+/**
+ * Open-addressing hash table mapping key hashes to record offsets, stored in two primitive arrays.
+ *
+ * Keys themselves are not kept: several keys may share a hash, so lookups hand every candidate offset
+ * to a predicate which checks the key against the record on disk. The index takes a single writer
+ * at a time while readers go without locks: slots are only ever filled or repointed at a newer version
+ * of their key, and a resize publishes freshly built arrays.
+ */
+class OffsetIndex @JvmOverloads constructor(expectedSize: Int = 16) : HashedOffsets {
+
+    private class Slots(val hashes: IntArray, val offsets: LongArray) {
+        val mask = hashes.size - 1
+    }
+
+    @Volatile
+    private var slots = Slots(IntArray(capacityFor(expectedSize)), LongArray(capacityFor(expectedSize)))
+
+    @Volatile
+    private var size = 0
+
+    fun size(): Int = size
+
+    /**
+     * Adds offset of a key which is not in the index yet.
+     *
+     * @param hash   hash of the key, see [hash]
+     * @param offset offset of the record
+     */
+    @Synchronized
+    fun add(hash: Int, offset: Long) {
+        require(offset >= 0) { "Negative offset $offset" }
+        if ((size + 1).toLong() * LOAD_DENOMINATOR > slots.hashes.size.toLong() * LOAD_NUMERATOR) {
+            slots = resize(slots)
+        }
+        insert(slots, hash, offset)
+        size++
+    }
+
+    /**
+     * Stores offset of a key, replacing the offset of its previous version if there is one.
+     * A reader sees either offset, never a missing key.
+     *
+     * @param hash    hash of the key, see [hash]
+     * @param offset  offset of the record
+     * @param sameKey called with every offset stored under the same hash, true for the previous version
+     * @return replaced offset or -1 if the key was not in the index
+     */
+    @Synchronized
+    fun put(hash: Int, offset: Long, sameKey: LongPredicate): Long {
+        val current = slots
+        var slot = hash and current.mask
+        while (true) {
+            val stored = current.offsets[slot]
+            if (stored == EMPTY) break
+            if (current.hashes[slot] == hash && sameKey.test(stored - 1)) {
+                current.offsets[slot] = offset + 1
+                return stored - 1
+            }
+            slot = (slot + 1) and current.mask
+        }
+        add(hash, offset)
+        return -1
+    }
+
+    /**
+     * Copies entries accepted by the predicate into a new index.
+     *
+     * @param keep called with offset of every entry
+     */
+    fun filter(keep: LongPredicate): OffsetIndex {
+        val filtered = OffsetIndex(size)
+        forEach { hash, offset ->
+            if (keep.test(offset)) {
+                filtered.add(hash, offset)
+            }
+        }
+        return filtered
+    }
+
+    /**
+     * Copies the index, slots included, so the copy can take writes while readers keep using this one.
+     */
+    @Synchronized
+    fun copy(): OffsetIndex {
+        val copy = OffsetIndex(0)
+        val current = slots
+        copy.slots = Slots(current.hashes.copyOf(), current.offsets.copyOf())
+        copy.size = size
+        return copy
+    }
+
+    /**
+     * Finds offset of a key.
+     *
+     * @param hash    hash of the key, see [hash]
+     * @param matches called with every offset stored under the same hash until it returns true
+     * @return offset accepted by the predicate or -1
+     */
+    override fun get(hash: Int, matches: LongPredicate): Long {
+        if (size == 0) return -1
+        val current = slots
+        var slot = hash and current.mask
+        while (true) {
+            val stored = current.offsets[slot]
+            if (stored == EMPTY) return -1
+            if (current.hashes[slot] == hash && matches.test(stored - 1)) {
+                return stored - 1
+            }
+            slot = (slot + 1) and current.mask
+        }
+    }
+
+    /**
+     * Calls the consumer with hash and offset of every entry.
+     */
+    override fun forEach(consumer: EntryConsumer) {
+        val current = slots
+        for (slot in current.offsets.indices) {
+            val stored = current.offsets[slot]
+            if (stored != EMPTY) {
+                consumer.accept(current.hashes[slot], stored - 1)
+            }
+        }
+    }
+
+    internal fun slotCount(): Int = slots.hashes.size
+
+    /**
+     * Calls the consumer with hash and stored value of every slot in slot order, including empty ones.
+     */
+    internal fun forEachSlot(consumer: (Int, Long) -> Unit) {
+        val current = slots
+        for (slot in current.offsets.indices) {
+            consumer(current.hashes[slot], current.offsets[slot])
+        }
+    }
+
+    /**
+     * Approximate heap used by the index arrays in bytes.
+     */
+    fun memoryUsage(): Long = slots.hashes.size.toLong() * (Int.SIZE_BYTES + Long.SIZE_BYTES)
+
+    private fun insert(target: Slots, hash: Int, offset: Long) {
+        var slot = hash and target.mask
+        while (target.offsets[slot] != EMPTY) {
+            slot = (slot + 1) and target.mask
+        }
+        target.hashes[slot] = hash
+        target.offsets[slot] = offset + 1
+    }
+
+    private fun resize(current: Slots): Slots {
+        val capacity = current.hashes.size * 2
+        val resized = Slots(IntArray(capacity), LongArray(capacity))
+        for (slot in current.offsets.indices) {
+            val stored = current.offsets[slot]
+            if (stored != EMPTY) {
+                insert(resized, current.hashes[slot], stored - 1)
+            }
+        }
+        return resized
+    }
+
+    companion object {
+        private const val EMPTY = 0L
+        private const val LOAD_NUMERATOR = 3
+        private const val LOAD_DENOMINATOR = 4
+
+        private fun capacityFor(expectedSize: Int): Int {
+            val wanted = maxOf(16L, expectedSize.toLong() * LOAD_DENOMINATOR / LOAD_NUMERATOR + 1)
+            return Integer.highestOneBit((wanted * 2 - 1).toInt().coerceAtMost(1 shl 30))
+        }
+
+        /**
+         * Hash of a key as stored in the index. Mixes [Object.hashCode] so sequential keys spread over slots.
+         */
+        @JvmStatic
+        fun hash(key: Any): Int {
+            var h = key.hashCode()
+            h = h xor (h ushr 16)
+            h *= -0x7a143595
+            h = h xor (h ushr 13)
+            h *= -0x3d4d51cb
+            h = h xor (h ushr 16)
+            return h
+        }
+    }
+}
+
+/**
+ * Hash index of record offsets, probed by key hash, see [OffsetIndex] and [MappedIndex].
+ */
+interface HashedOffsets {
+    /**
+     * Finds offset of a key.
+     *
+     * @param hash    hash of the key, see [OffsetIndex.hash]
+     * @param matches called with every offset stored under the same hash until it returns true
+     * @return offset accepted by the predicate or -1
+     */
+    fun get(hash: Int, matches: LongPredicate): Long
+
+    /**
+     * Calls the consumer with hash and offset of every entry.
+     */
+    fun forEach(consumer: EntryConsumer)
+}
+
+/**
+ * Receives entries of an offset index.
+ */
+fun interface EntryConsumer {
+    fun accept(hash: Int, offset: Long)
+}
+
+/**
+ * Growable pair of primitive arrays collecting hashes and offsets before they go into an [OffsetIndex].
+ */
+internal class HashOffsets {
+    var hashes = IntArray(1024)
+    var offsets = LongArray(1024)
+    var size = 0
+
+    fun add(hash: Int, offset: Long) {
+        if (size == hashes.size) {
+            hashes = hashes.copyOf(size * 2)
+            offsets = offsets.copyOf(size * 2)
+        }
+        hashes[size] = hash
+        offsets[size] = offset
+        size++
+    }
+}
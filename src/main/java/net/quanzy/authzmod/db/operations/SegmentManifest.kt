@@ -0,0 +1,109 @@
+package net.quanzy.authzmod.db.operations
+
+import org.slf4j.LoggerFactory
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.zip.CRC32C
+
+/**
+ * List of sealed segments of a table, newest first, and generation of its data file, replaced atomically
+ * on every change.
+ *
+ * Layout, big-endian:
+ * ```
+ * int magic | int version | long generation | int count | count * (long id | long garbageLength) | int crc32c
+ * ```
+ * `garbageLength` is the part of a segment taken by versions which newer segments replaced or deleted.
+ */
+class SegmentManifest(private val file: File) {
+
+    data class Entry(val id: Long, val garbageLength: Long)
+
+    /**
+     * Generation of the data file and sealed segments, newest first.
+     */
+    data class Contents(val generation: Long, val entries: List<Entry>)
+
+    private val logger = LoggerFactory.getLogger(SegmentManifest::class.java)
+
+    fun exists(): Boolean = file.exists()
+
+    /**
+     * Reads the generation and the entries, newest segment first.
+     *
+     * @return contents, generation 0 without segments if there is no manifest
+     * @throws IOException if the manifest is corrupted
+     */
+    @Throws(IOException::class)
+    fun read(): Contents {
+        if (!file.exists()) return Contents(0, emptyList())
+        val buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()))
+        if (buffer.remaining() < HEADER_SIZE + Int.SIZE_BYTES || buffer.getInt(0) != MAGIC) {
+            throw IOException("Not a segment manifest: ${file.absolutePath}")
+        }
+        val version = buffer.getInt(Int.SIZE_BYTES)
+        if (version != VERSION) {
+            throw IOException("Unsupported segment manifest version $version in ${file.absolutePath}")
+        }
+        val generation = buffer.getLong(8)
+        val count = buffer.getInt(HEADER_SIZE - Int.SIZE_BYTES)
+        val length = HEADER_SIZE + count.toLong() * ENTRY_SIZE
+        if (count < 0 || length + Int.SIZE_BYTES != buffer.capacity().toLong()) {
+            throw IOException("Corrupted segment manifest ${file.absolutePath}")
+        }
+        val crc = CRC32C()
+        crc.update(buffer.array(), 0, length.toInt())
+        if (crc.value.toInt() != buffer.getInt(length.toInt())) {
+            throw IOException("Checksum mismatch in segment manifest ${file.absolutePath}")
+        }
+        buffer.position(HEADER_SIZE)
+        return Contents(generation, List(count) { Entry(buffer.getLong(), buffer.getLong()) })
+    }
+
+    /**
+     * Atomically replaces the manifest.
+     *
+     * @param generation generation of the data file
+     * @param entries    segments, newest first
+     */
+    @Throws(IOException::class)
+    fun write(generation: Long, entries: List<Entry>) {
+        val buffer = ByteBuffer.allocate(HEADER_SIZE + entries.size * ENTRY_SIZE + Int.SIZE_BYTES)
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(generation).putInt(entries.size)
+        for (entry in entries) {
+            buffer.putLong(entry.id).putLong(entry.garbageLength)
+        }
+        val crc = CRC32C()
+        crc.update(buffer.array(), 0, buffer.position())
+        buffer.putInt(crc.value.toInt()).flip()
+        val tempFile = File(file.absolutePath + ".tmp")
+        FileChannel.open(tempFile.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
+        ).use { channel ->
+            while (buffer.hasRemaining()) {
+                channel.write(buffer)
+            }
+            channel.force(true)
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        logger.debug("Wrote segment manifest {} with generation {} and {} segments", file.absolutePath, generation, entries.size)
+    }
+
+    fun delete() {
+        if (file.exists() && !file.delete()) {
+            logger.warn("Cannot delete segment manifest {}", file.absolutePath)
+        }
+    }
+
+    companion object {
+        const val MAGIC = 0x415A534D // "AZSM"
+        const val VERSION = 1
+        private const val HEADER_SIZE = 20
+        private const val ENTRY_SIZE = Long.SIZE_BYTES * 2
+    }
+}
@@ -0,0 +1,318 @@
+package net.quanzy.authzmod.db.operations
+
+import org.slf4j.LoggerFactory
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import java.util.function.Consumer
+import java.util.zip.CRC32C
+import kotlin.concurrent.withLock
+
+/**
+ * When appended records are forced to disk.
+ */
+sealed class FsyncPolicy {
+    /**
+     * Every append waits for fsync. Concurrent appends share one fsync.
+     */
+    object PerWrite : FsyncPolicy()
+
+    /**
+     * Appends wait for the write only, fsync happens once at least [records] records are unsynced.
+     */
+    class EveryRecords(val records: Int) : FsyncPolicy()
+
+    /**
+     * Appends wait for the write only, fsync happens every [millis] milliseconds.
+     */
+    class Interval(val millis: Long) : FsyncPolicy()
+
+    companion object {
+        @JvmStatic
+        fun perWrite(): FsyncPolicy = PerWrite
+
+        @JvmStatic
+        fun everyRecords(records: Int): FsyncPolicy = EveryRecords(records)
+
+        @JvmStatic
+        fun interval(millis: Long): FsyncPolicy = Interval(millis)
+    }
+}
+
+/**
+ * Append-only log of records added to a table but not flushed yet.
+ *
+ * The log is a sequence of segment files `<data file>.wal.<n>` holding frames of
+ * `int length | int crc32c | record bytes`, tombstones have [DataOperations.TOMBSTONE_FLAG] set in the length. Concurrent appends are group-committed: the first writer
+ * to find no commit in progress becomes the leader and writes everything buffered so far with
+ * a single write (and fsync, depending on [FsyncPolicy]) while the others wait for it.
+ * A flush calls [rollover] before taking its snapshot and [deleteSegmentsUpTo] once the snapshot is durable.
+ */
+class WriteAheadLog(private val dataFile: File, private val policy: FsyncPolicy) : Closeable {
+
+    private val logger = LoggerFactory.getLogger(WriteAheadLog::class.java)
+    private val lock = ReentrantLock()
+    private val committed = lock.newCondition()
+    private val crc = CRC32C()
+    private var filling: ByteBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE)
+    private var spare: ByteBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE)
+    private var appended = 0L
+    private var written = 0L
+    private var synced = 0L
+    private var writing = false
+    private var failure: IOException? = null
+    private var segment: Long
+    private var channel: FileChannel
+    private val syncer: ScheduledExecutorService?
+
+    init {
+        segment = (segmentNumbers().maxOrNull() ?: 0L) + 1
+        channel = openSegment(segment)
+        syncer = (policy as? FsyncPolicy.Interval)?.let { interval ->
+            Executors.newSingleThreadScheduledExecutor { runnable ->
+                Thread(runnable, "wal-sync-" + dataFile.name).apply { isDaemon = true }
+            }.also {
+                it.scheduleWithFixedDelay({ syncQuietly() }, interval.millis, interval.millis, TimeUnit.MILLISECONDS)
+            }
+        }
+    }
+
+    /**
+     * Appends record and waits until it is written, or synced for [FsyncPolicy.PerWrite].
+     *
+     * @param record    record contents, position and limit are left unchanged
+     * @param tombstone whether the record marks its key as deleted
+     */
+    @JvmOverloads
+    @Throws(IOException::class)
+    fun append(record: ByteBuffer, tombstone: Boolean = false) {
+        lock.withLock {
+            val length = record.remaining()
+            ensureCapacity(FRAME_HEADER_SIZE + length)
+            crc.reset()
+            crc.update(record.duplicate())
+            val header = if (tombstone) length or DataOperations.TOMBSTONE_FLAG else length
+            filling.putInt(header).putInt(crc.value.toInt()).put(record.duplicate())
+            val sequence = ++appended
+            while (true) {
+                failure?.let { throw IOException("Write-ahead log of ${dataFile.absolutePath} failed", it) }
+                if (isCommitted(sequence)) return
+                if (writing) {
+                    committed.await()
+                } else {
+                    commit(policy is FsyncPolicy.PerWrite)
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the current segment after forcing it and starts a new one.
+     * Records appended before this call are in segments up to the returned number.
+     *
+     * @return number of the closed segment
+     */
+    @Throws(IOException::class)
+    fun rollover(): Long {
+        lock.withLock {
+            while (writing) {
+                committed.await()
+            }
+            commit(true)
+            failure?.let { throw IOException("Write-ahead log of ${dataFile.absolutePath} failed", it) }
+            channel.close()
+            val sealed = segment
+            segment++
+            channel = openSegment(segment)
+            return sealed
+        }
+    }
+
+    /**
+     * Deletes segments whose records are durable in the data file.
+     */
+    fun deleteSegmentsUpTo(sealed: Long) {
+        segmentNumbers().filter { it <= sealed }.forEach { number ->
+            val file = segmentFile(number)
+            if (!file.delete()) {
+                logger.warn("Cannot delete write-ahead log segment {}", file.absolutePath)
+            }
+        }
+    }
+
+    /**
+     * Passes every intact record of the previous segments to the consumer, oldest first.
+     * A segment is truncated at its first torn or corrupted frame.
+     *
+     * @return number of replayed records
+     */
+    @Throws(IOException::class)
+    fun replay(consumer: Consumer<ByteBuffer>): Int = replay(FrameConsumer { record, _ -> consumer.accept(record) })
+
+    /**
+     * Passes every intact record of the previous segments to the consumer with its tombstone flag, oldest first.
+     * A segment is truncated at its first torn or corrupted frame.
+     *
+     * @return number of replayed records
+     */
+    @Throws(IOException::class)
+    fun replay(consumer: FrameConsumer): Int {
+        var replayed = 0
+        for (number in segmentNumbers().filter { it < segment }.sorted()) {
+            val file = segmentFile(number)
+            FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE).use { segmentChannel ->
+                val size = segmentChannel.size()
+                // read to the heap, a mapping must not outlive the truncation below
+                val buffer = ByteBuffer.allocate(Math.toIntExact(size))
+                while (buffer.hasRemaining() && segmentChannel.read(buffer) >= 0) {
+                    // read until the buffer is full
+                }
+                buffer.flip()
+                val checksum = CRC32C()
+                while (buffer.remaining() >= FRAME_HEADER_SIZE) {
+                    val start = buffer.position()
+                    val header = buffer.getInt()
+                    val length = header and Int.MAX_VALUE
+                    val expected = buffer.getInt()
+                    if (length > buffer.remaining()) {
+                        buffer.position(start)
+                        break
+                    }
+                    val record = buffer.slice(buffer.position(), length)
+                    checksum.reset()
+                    checksum.update(record.duplicate())
+                    if (checksum.value.toInt() != expected) {
+                        buffer.position(start)
+                        break
+                    }
+                    consumer.accept(record, header < 0)
+                    replayed++
+                    buffer.position(buffer.position() + length)
+                }
+                if (buffer.position() < size) {
+                    logger.warn("Truncating write-ahead log segment {} from {} to {} bytes", file.absolutePath, size, buffer.position())
+                    segmentChannel.truncate(buffer.position().toLong())
+                }
+            }
+        }
+        if (replayed > 0) {
+            logger.info("Replayed {} records from write-ahead log of {}", replayed, dataFile.absolutePath)
+        }
+        return replayed
+    }
+
+    /**
+     * Deletes all segments, including the current one.
+     */
+    fun delete() {
+        close()
+        deleteSegmentsUpTo(Long.MAX_VALUE)
+    }
+
+    override fun close() {
+        syncer?.shutdownNow()
+        lock.withLock {
+            while (writing) {
+                committed.await()
+            }
+            if (channel.isOpen) {
+                commit(true)
+                channel.close()
+            }
+        }
+    }
+
+    private fun isCommitted(sequence: Long): Boolean =
+        if (policy is FsyncPolicy.PerWrite) synced >= sequence else written >= sequence
+
+    /**
+     * Writes the buffered frames as the leader. Called and returns with the lock held,
+     * the lock is released during I/O.
+     */
+    private fun commit(force: Boolean) {
+        writing = true
+        val batch = filling.flip()
+        filling = spare.clear()
+        val batchEnd = appended
+        val sync = force || (policy is FsyncPolicy.EveryRecords && batchEnd - synced >= policy.records)
+        val target = channel
+        lock.unlock()
+        var error: IOException? = null
+        try {
+            while (batch.hasRemaining()) {
+                target.write(batch)
+            }
+            if (sync) {
+                target.force(false)
+            }
+        } catch (e: IOException) {
+            error = e
+        } finally {
+            lock.lock()
+            spare = batch
+            writing = false
+            if (error != null) {
+                failure = error
+            } else {
+                written = batchEnd
+                if (sync) synced = batchEnd
+            }
+            committed.signalAll()
+        }
+    }
+
+    private fun syncQuietly() {
+        val (target, upTo) = lock.withLock { channel to written }
+        try {
+            target.force(false)
+            lock.withLock {
+                if (upTo > synced) synced = upTo
+            }
+        } catch (e: IOException) {
+            if (target.isOpen) {
+                logger.warn("Cannot sync write-ahead log of {}", dataFile.absolutePath, e)
+            }
+        }
+    }
+
+    private fun ensureCapacity(frameSize: Int) {
+        if (filling.remaining() < frameSize) {
+            val grown = ByteBuffer.allocateDirect(Integer.highestOneBit(filling.position() + frameSize) shl 1)
+            grown.put(filling.flip())
+            filling = grown
+        }
+    }
+
+    private fun segmentFile(number: Long) = File(dataFile.absolutePath + SEGMENT_SUFFIX + number)
+
+    private fun openSegment(number: Long): FileChannel = FileChannel.open(segmentFile(number).toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+
+    private fun segmentNumbers(): List<Long> {
+        val prefix = dataFile.name + SEGMENT_SUFFIX
+        return dataFile.absoluteFile.parentFile.list()
+            ?.filter { it.startsWith(prefix) }
+            ?.mapNotNull { it.substring(prefix.length).toLongOrNull() }
+            ?: emptyList()
+    }
+
+    companion object {
+        private const val FRAME_HEADER_SIZE = Int.SIZE_BYTES * 2
+        private const val INITIAL_BUFFER_SIZE = 64 shl 10
+        private const val SEGMENT_SUFFIX = ".wal."
+    }
+}
+
+/**
+ * Receives records replayed from a write-ahead log.
+ */
+fun interface FrameConsumer {
+    fun accept(record: ByteBuffer, tombstone: Boolean)
+}
@@ -0,0 +1,63 @@
+package net.quanzy.authzmod.db.utils;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Deliberately slow password key derivation functions. The id is stored in records hashed with the function.
+ */
+public enum Kdf {
+    PBKDF2_HMAC_SHA256(1, "PBKDF2WithHmacSHA256");
+
+    private final int id;
+    private final String algorithm;
+
+    Kdf(int id, String algorithm) {
+        this.id = id;
+        this.algorithm = algorithm;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Derives a key from the password.
+     * @param password   password
+     * @param salt       per-record salt
+     * @param iterations iteration count
+     * @param length     key length in bytes
+     * @return derived key
+     */
+    public byte[] derive(CharSequence password, byte[] salt, int iterations, int length) {
+        char[] chars = new char[password.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = password.charAt(i);
+        }
+        PBEKeySpec spec = new PBEKeySpec(chars, salt, iterations, length * Byte.SIZE);
+        try {
+            return SecretKeyFactory.getInstance(algorithm).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot derive key with " + algorithm, e);
+        } finally {
+            spec.clearPassword();
+            Arrays.fill(chars, '\0');
+        }
+    }
+
+    /**
+     * Finds the function by the id stored in a record.
+     * @param id function id
+     * @return function
+     */
+    public static Kdf byId(int id) {
+        for (Kdf kdf : values()) {
+            if (kdf.id == id) {
+                return kdf;
+            }
+        }
+        throw new IllegalArgumentException("Unknown key derivation function " + id);
+    }
+}
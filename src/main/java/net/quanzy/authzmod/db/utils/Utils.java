@@ -1,23 +1,72 @@
 package net.quanzy.authzmod.db.utils;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public class Utils {
 
-    private static final MessageDigest digester;
+    /**
+     * SHA-256 digester with a UTF-8 encoder and a scratch buffer, one per thread.
+     */
+    private static final class Digester {
+        private final MessageDigest digest;
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final ByteBuffer bytes = ByteBuffer.allocate(256);
 
-    static {
-        try {
-            digester = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+        private Digester() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
         }
+
+        private byte[] digest(CharSequence input) {
+            CharBuffer chars = CharBuffer.wrap(input);
+            encoder.reset();
+            bytes.clear();
+            CoderResult result = encoder.encode(chars, bytes, true);
+            while (result.isOverflow()) {
+                digest.update(bytes.flip());
+                bytes.clear();
+                result = encoder.encode(chars, bytes, true);
+            }
+            while (encoder.flush(bytes).isOverflow()) {
+                digest.update(bytes.flip());
+                bytes.clear();
+            }
+            digest.update(bytes.flip());
+            return digest.digest();
+        }
+    }
+
+    private static final ThreadLocal<Digester> digesters = ThreadLocal.withInitial(Digester::new);
+
+    /**
+     * Computes SHA-256 of the UTF-8 encoding of the input. Safe to call from any thread,
+     * the input is encoded straight into the digester without an intermediate byte array.
+     * @param input text to digest
+     * @return 32-byte digest
+     */
+    public static byte[] digest(CharSequence input) {
+        return digesters.get().digest(input);
     }
 
-    public static byte[] digest(String input) {
-        return digester.digest(input.getBytes(StandardCharsets.UTF_8));
+    /**
+     * Computes SHA-256 of the input. Safe to call from any thread.
+     * @param input bytes to digest
+     * @return 32-byte digest
+     */
+    public static byte[] digest(byte[] input) {
+        return digesters.get().digest.digest(input);
     }
 
 }
@@ -0,0 +1,52 @@
+package net.quanzy.authzmod.db
+
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.nio.file.Files
+import kotlin.random.Random
+
+@Tag("benchmark")
+class BatchLookupBenchmark {
+
+    lateinit var dbFile: File
+
+    @BeforeEach
+    fun setup() {
+        dbFile = Files.createTempFile("bench-db", ".db").toFile()
+    }
+
+    @AfterEach
+    fun teardown() {
+        deleteTableFiles(dbFile)
+    }
+
+    @Test
+    fun `Look up 100k usernames one by one and in batches`() {
+        val db = Table.createOrRead(dbFile, AuthzRecord::class.java, String::class.java)
+        for (i in 0 until 500_000) {
+            db.addRecord(AuthzRecord.create("user-$i", "password-$i"))
+        }
+        db.flush()
+        val names = List(100_000) { "user-${Random(42 + it).nextInt(500_000)}" }
+        for (mode in TableOptions.ReadMode.entries) {
+            // no cache, every run reads the data file
+            val options = TableOptions.defaults().readMode(mode).cacheMaxWeight(0).negativeCacheSize(0)
+            val single = Table.createOrRead(dbFile, AuthzRecord::class.java, String::class.java, options)
+            val found = benchmark("100k lookups one by one, $mode") {
+                names.count { single.getRecordLazily(it).isPresent }
+            }
+            val batched = Table.createOrRead(dbFile, AuthzRecord::class.java, String::class.java, options)
+            val foundInBatches = benchmark("100k lookups in batches of 1000, $mode") {
+                names.chunked(1_000).sumOf { batch ->
+                    val records = batched.getRecords(batch)
+                    batch.count { it in records }
+                }
+            }
+            assertEquals(found, foundInBatches)
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package net.quanzy.authzmod.db
+
+import java.io.File
+import java.nio.file.Files
+
+/**
+ * Deletes the data file of a table with every file named after it: index, bloom filter, index delta,
+ * later generations, segments, manifest and write-ahead log.
+ */
+fun deleteTableFiles(dbFile: File) {
+    dbFile.absoluteFile.parentFile.listFiles { _, name -> name.startsWith(dbFile.name) }?.forEach {
+        Files.deleteIfExists(it.toPath())
+    }
+}
+
+/**
+ * Runs the block [warmup] times unmeasured, then [repetitions] times and prints the best wall time.
+ */
+fun <T> benchmark(name: String, warmup: Int = 1, repetitions: Int = 3, block: () -> T): T {
+    val (result, best) = measure(warmup, repetitions, block)
+    println(String.format("%-50s %10.2f ms", name, best / 1_000_000.0))
+    return result
+}
+
+/**
+ * Like [benchmark], but prints the rate of the best run for a block processing [bytes] bytes.
+ */
+fun <T> throughput(name: String, bytes: Long, warmup: Int = 1, repetitions: Int = 3, block: () -> T): T {
+    val (result, best) = measure(warmup, repetitions, block)
+    println(String.format("%-50s %10.2f ms %10.1f MB/s", name, best / 1_000_000.0, bytes / 1_048_576.0 / (best / 1e9)))
+    return result
+}
+
+private fun <T> measure(warmup: Int, repetitions: Int, block: () -> T): Pair<T, Long> {
+    var result: T? = null
+    repeat(warmup) { result = block() }
+    var best = Long.MAX_VALUE
+    repeat(repetitions) {
+        val start = System.nanoTime()
+        result = block()
+        best = minOf(best, System.nanoTime() - start)
+    }
+    @Suppress("UNCHECKED_CAST")
+    return Pair(result as T, best)
+}
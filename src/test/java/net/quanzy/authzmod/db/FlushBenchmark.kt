@@ -0,0 +1,43 @@
+package net.quanzy.authzmod.db
+
+import net.quanzy.authzmod.db.operations.DataOperations
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardOpenOption
+
+@Tag("benchmark")
+class FlushBenchmark {
+
+    lateinit var dbFile: File
+
+    @BeforeEach
+    fun setup() {
+        dbFile = Files.createTempFile("bench-db", ".db").toFile()
+    }
+
+    @AfterEach
+    fun teardown() {
+        Files.deleteIfExists(dbFile.toPath())
+    }
+
+    @Test
+    fun `Flush 1M records`() {
+        val records = (0 until 1_000_000).map { AuthzRecord.create("user-$it", "password-$it") }
+        val bytes = records.sumOf { Int.SIZE_BYTES.toLong() + it.length() }
+        val dataOperations = DataOperations<AuthzRecord, String>(AuthzRecord::class.java)
+
+        val result = throughput("write 1M records to data file", bytes) {
+            FileChannel.open(dbFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING).use {
+                dataOperations.writeData(records, it)
+            }
+        }
+        assertEquals(bytes, result.dataLength)
+        assertEquals(bytes, dbFile.length())
+    }
+}
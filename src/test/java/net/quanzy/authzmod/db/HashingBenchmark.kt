@@ -0,0 +1,47 @@
+package net.quanzy.authzmod.db
+
+import net.quanzy.authzmod.db.utils.Utils
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+
+@Tag("benchmark")
+class HashingBenchmark {
+
+    @Test
+    fun `Hash 1M passwords on 1 to N threads`() {
+        val passwords = (0 until 1_000_000).map { "password-$it" }
+        var threads = 1
+        while (threads <= Runtime.getRuntime().availableProcessors()) {
+            val pool = Executors.newFixedThreadPool(threads)
+            try {
+                val chunk = passwords.size / threads
+                benchmark("hash 1M passwords, $threads threads") {
+                    (0 until threads).map { t ->
+                        pool.submit<Int> {
+                            var sum = 0
+                            for (i in t * chunk until (t + 1) * chunk) {
+                                sum += Utils.digest(passwords[i])[0]
+                            }
+                            sum
+                        }
+                    }.sumOf(Future<Int>::get)
+                }
+            } finally {
+                pool.shutdown()
+            }
+            threads *= 2
+        }
+
+        val records = passwords.take(100_000).mapIndexed { i, p -> AuthzRecord.create("user-$i", p) }
+        val cores = Runtime.getRuntime().availableProcessors()
+        val verified = PasswordVerifier(cores, cores).use { verifier ->
+            benchmark("verify 100k passwords, batch on $cores threads") {
+                verifier.verifyAll(records, passwords.take(100_000)).join()
+            }
+        }
+        assertTrue(verified.all { it })
+    }
+}
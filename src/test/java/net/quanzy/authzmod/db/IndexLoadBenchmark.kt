@@ -0,0 +1,61 @@
+package net.quanzy.authzmod.db
+
+import net.quanzy.authzmod.db.operations.IndexOperations
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.nio.file.Files
+
+@Tag("benchmark")
+class IndexLoadBenchmark {
+
+    lateinit var dbFile: File
+
+    @BeforeEach
+    fun setup() {
+        dbFile = Files.createTempFile("bench-db", ".db").toFile()
+    }
+
+    @AfterEach
+    fun teardown() {
+        deleteTableFiles(dbFile)
+    }
+
+    @Test
+    fun `Startup with 1M records`() {
+        val source = Table.createOrRead(dbFile, AuthzRecord::class.java, String::class.java)
+        for (i in 0 until 1_000_000) {
+            source.addRecord(AuthzRecord.create("user-$i", "password-$i"))
+        }
+        source.flush()
+
+        val opened = benchmark("open table, mapped index") {
+            Table.createOrRead(dbFile, AuthzRecord::class.java, String::class.java)
+        }
+        assertEquals(1_000_000, opened.recordCount())
+
+        val indexOperations = IndexOperations(String::class.java)
+        val legacyIndex = indexOperations.writeIndex((0 until 1_000_000).associate { "user-$it" to it * 64L })
+        try {
+            val sequential = benchmark("legacy index to map, sequential") {
+                indexOperations.readIndex(legacyIndex, false)
+            }
+            val parallel = benchmark("legacy index to map, parallel") {
+                indexOperations.readIndex(legacyIndex, true)
+            }
+            assertEquals(sequential, parallel)
+            benchmark("legacy index to offsets, sequential") {
+                indexOperations.loadOffsets(legacyIndex, false)
+            }
+            val offsets = benchmark("legacy index to offsets, parallel") {
+                indexOperations.loadOffsets(legacyIndex, true)
+            }
+            assertEquals(1_000_000, offsets.size())
+        } finally {
+            Files.deleteIfExists(legacyIndex.toPath())
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package net.quanzy.authzmod.db
+
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.nio.file.Files
+
+@Tag("benchmark")
+class NegativeLookupBenchmark {
+
+    lateinit var dbFile: File
+
+    @BeforeEach
+    fun setup() {
+        dbFile = Files.createTempFile("bench-db", ".db").toFile()
+    }
+
+    @AfterEach
+    fun teardown() {
+        deleteTableFiles(dbFile)
+    }
+
+    @Test
+    fun `Look up 1M absent usernames`() {
+        val db = Table.createOrRead(dbFile, AuthzRecord::class.java, String::class.java)
+        for (i in 0 until 200_000) {
+            db.addRecord(AuthzRecord.create("user-$i", "password-$i"))
+        }
+        db.flush()
+        val names = (0 until 1_000_000).map { "bot-$it" }
+        for ((name, options) in listOf(
+            "without bloom filter" to TableOptions.defaults().bloomFilter(0.0).negativeCacheSize(0),
+            "with bloom filter 1%" to TableOptions.defaults().negativeCacheSize(0),
+            "with bloom filter 0.1%" to TableOptions.defaults().bloomFilter(0.001).negativeCacheSize(0)
+        )) {
+            Files.deleteIfExists(File(dbFile.absolutePath + ".bloom").toPath())
+            val table = Table.createOrRead(dbFile, AuthzRecord::class.java, String::class.java, options)
+            val found = benchmark("1M absent lookups $name") {
+                names.count { table.getRecordLazily(it).isPresent }
+            }
+            assertTrue(found == 0)
+        }
+    }
+}
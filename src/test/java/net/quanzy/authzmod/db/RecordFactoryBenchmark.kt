@@ -0,0 +1,35 @@
+package net.quanzy.authzmod.db
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import java.nio.ByteBuffer
+
+@Tag("benchmark")
+class RecordFactoryBenchmark {
+
+    @Test
+    fun `Build 1M records`() {
+        val contents = AuthzRecord.create("user-1", "password-1").contents()
+        val count = 1_000_000
+
+        val reflective = benchmark("build 1M records, reflective constructor") {
+            var size = 0L
+            for (i in 0 until count) {
+                val constructor = AuthzRecord::class.java.getDeclaredConstructor(ByteBuffer::class.java)
+                constructor.isAccessible = true
+                size += constructor.newInstance(contents).length()
+            }
+            size
+        }
+        val factory = AbstractRecord.factory<AuthzRecord>(AuthzRecord::class.java)
+        val generated = benchmark("build 1M records, cached factory") {
+            var size = 0L
+            for (i in 0 until count) {
+                size += factory.apply(contents).length()
+            }
+            size
+        }
+        assertEquals(reflective, generated)
+    }
+}
@@ -22,9 +22,7 @@ class TestLoad {
     @AfterEach
     @Throws(IOException::class)
     fun teardown() {
-        if (Files.exists(dbFile.toPath())) {
-            Files.delete(dbFile.toPath())
-        }
+        deleteTableFiles(dbFile)
     }
 
     @Test
@@ -0,0 +1,102 @@
+package net.quanzy.authzmod.db;
+
+import net.quanzy.authzmod.db.utils.Kdf;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestPasswordVerifier {
+
+    @Test
+    public void testSaltedRecord() {
+        AuthzRecord record = new AuthzRecord(AuthzRecord.create("foo", "bar", Kdf.PBKDF2_HMAC_SHA256, 1000).contents());
+        assertTrue(record.isSalted());
+        assertEquals("foo", record.getUsername());
+        assertTrue(record.verify("bar"));
+        assertFalse(record.verify("baz"));
+
+        AuthzRecord other = AuthzRecord.create("foo", "bar", Kdf.PBKDF2_HMAC_SHA256, 1000);
+        assertFalse(other.getHash().equals(record.getHash()), "salts should differ");
+    }
+
+    @Test
+    public void testAsyncVerification() throws ExecutionException, InterruptedException {
+        AuthzRecord record = AuthzRecord.create("foo", "bar", Kdf.PBKDF2_HMAC_SHA256, 1000);
+        try (PasswordVerifier verifier = new PasswordVerifier(2, 16)) {
+            assertTrue(verifier.verify(record, "bar").get());
+            assertFalse(verifier.verify(record, "baz").get());
+            assertEquals(2, verifier.getVerifiedCount());
+        }
+    }
+
+    @Test
+    public void testBatchVerification() {
+        List<AuthzRecord> records = new ArrayList<>();
+        List<String> passwords = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            records.add(AuthzRecord.create("user-" + i, "password-" + i));
+            passwords.add(i % 3 == 0 ? "wrong" : "password-" + i);
+        }
+        try (PasswordVerifier verifier = new PasswordVerifier(3, 16)) {
+            boolean[] verified = verifier.verifyAll(records, passwords).join();
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i % 3 != 0, verified[i], "user-" + i);
+            }
+            assertEquals(10, verifier.getVerifiedCount());
+        }
+    }
+
+    @Test
+    public void testRejectsWhenQueueIsFull() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        AuthzRecord blocking = new AuthzRecord(AuthzRecord.create("foo", "bar").contents()) {
+            @Override
+            public boolean verify(CharSequence password) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.verify(password);
+            }
+        };
+        try (PasswordVerifier verifier = new PasswordVerifier(1, 2)) {
+            List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                futures.add(verifier.verify(blocking, "bar"));
+            }
+            assertEquals(2, verifier.getRejectedCount());
+            assertEquals(2, verifier.getQueueDepth());
+            release.countDown();
+            assertEquals(3, futures.stream().filter(f -> !f.isCompletedExceptionally() && f.join()).count());
+        }
+    }
+
+    @Test
+    public void testVerifyFromTable() throws IOException, ExecutionException, InterruptedException {
+        File dbFile = Files.createTempFile("test-db", ".db").toFile();
+        Table<String, AuthzRecord> table = Table.createOrRead(dbFile, AuthzRecord.class, String.class);
+        table.addRecord(AuthzRecord.create("foo", "bar", Kdf.PBKDF2_HMAC_SHA256, 1000));
+        table.flush();
+        try (PasswordVerifier verifier = new PasswordVerifier(2, 16)) {
+            assertTrue(verifier.verify(table, "foo", "bar").get());
+            assertFalse(verifier.verify(table, "foo", "baz").get());
+            assertFalse(verifier.verify(table, "nobody", "bar").get());
+            assertEquals(2, verifier.getVerifiedCount());
+        } finally {
+            table.close();
+            table.delete();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package net.quanzy.authzmod.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestRecordCache {
+
+    @Test
+    public void testLruEvictsByWeight() {
+        AuthzRecord record = AuthzRecord.create("user-0", "password");
+        long weight = record.getSize();
+        LruRecordCache<String, AuthzRecord> cache = new LruRecordCache<>(16 * 4 * weight, 0);
+        for (int i = 0; i < 1000; i++) {
+            cache.get("user-" + i, key -> AuthzRecord.create(key, "password"));
+        }
+        CacheStats stats = cache.stats();
+        assertTrue(stats.getWeight() <= 16 * 4 * weight);
+        assertTrue(stats.getEvictionCount() > 0);
+        assertEquals(1000, stats.getMissCount());
+    }
+
+    @Test
+    public void testNegativeCache() {
+        LruRecordCache<String, AuthzRecord> cache = new LruRecordCache<>(1024 * 1024, 1024);
+        AtomicInteger loads = new AtomicInteger();
+        assertNull(cache.get("ghost", key -> {
+            loads.incrementAndGet();
+            return null;
+        }));
+        assertNull(cache.get("ghost", key -> {
+            loads.incrementAndGet();
+            return null;
+        }));
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.stats().getNegativeHitCount());
+
+        cache.invalidate("ghost");
+        AuthzRecord loaded = cache.get("ghost", key -> AuthzRecord.create(key, "boo"));
+        assertEquals("ghost", loaded.getUsername());
+        assertEquals(1, cache.stats().getSize());
+    }
+
+    @Test
+    public void testInvalidationDiscardsOnlyLoadsOfItsKey() {
+        for (RecordCache<String, AuthzRecord> cache : List.<RecordCache<String, AuthzRecord>>of(
+                new LruRecordCache<>(1024 * 1024, 1024), new UnboundedRecordCache<>())) {
+            cache.get("user-0", key -> {
+                cache.invalidate("user-1");
+                return AuthzRecord.create(key, "password");
+            });
+            assertEquals(1, cache.stats().getSize(), "a write of another key does not discard the load");
+            cache.get("user-1", key -> {
+                cache.invalidate(key);
+                return AuthzRecord.create(key, "password");
+            });
+            assertEquals(1, cache.stats().getSize(), "a write of the loaded key does");
+        }
+    }
+
+    @Test
+    public void testGetAllLoadsMissingKeysOnce() {
+        LruRecordCache<String, AuthzRecord> cache = new LruRecordCache<>(1024 * 1024, 1024);
+        cache.get("user-0", key -> AuthzRecord.create(key, "password"));
+        AtomicInteger loads = new AtomicInteger();
+        Map<String, AuthzRecord> found = cache.getAll(List.of("user-0", "user-1", "ghost"), keys -> {
+            loads.incrementAndGet();
+            assertEquals(2, keys.size());
+            Map<String, AuthzRecord> loaded = new HashMap<>();
+            loaded.put("user-1", AuthzRecord.create("user-1", "password"));
+            return loaded;
+        });
+        assertEquals(2, found.size());
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.stats().getHitCount());
+
+        found = cache.getAll(List.of("user-0", "user-1", "ghost"), keys -> {
+            throw new AssertionError("loaded " + keys);
+        });
+        assertEquals(2, found.size());
+        assertEquals(1, cache.stats().getNegativeHitCount());
+    }
+}
@@ -1,6 +1,10 @@
 package net.quanzy.authzmod.db
 
+import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Test
+import java.nio.ByteBuffer
+import java.util.UUID
 
 
 class TestSerializers {
@@ -12,4 +16,43 @@ class TestSerializers {
         val deserialized = serializer.read(serialized)
         assert(originalString == deserialized)
     }
+
+    @Test
+    fun testStringSerializerWritesUtf8() {
+        val serializer = StringSerializer()
+        for (value in listOf("", "andrew", "Jörg", "игрок", "玩家", "player 🎮", "broken \uD83C tail", "\uDFAE")) {
+            val expected = value.toByteArray(Charsets.UTF_8)
+            assertEquals(Int.SIZE_BYTES + expected.size, serializer.serializedSize(value), value)
+            val target = ByteBuffer.allocateDirect(64).position(3)
+            serializer.write(value, target)
+            assertEquals(3 + serializer.serializedSize(value), target.position(), value)
+            target.flip().position(3)
+            assertEquals(expected.size, target.duplicate().int, value)
+            assertEquals(String(expected, Charsets.UTF_8), serializer.read(target), value)
+            assertEquals(String(expected, Charsets.UTF_8), serializer.read(serializer.serialize(value)), value)
+        }
+    }
+
+    @Test
+    fun testKeySerializers() {
+        val uuid = UUID.randomUUID()
+        assertRoundTrip(findSerializerForClass(UUID::class.java), uuid, 16)
+        assertRoundTrip(findSerializerForClass(Long::class.javaObjectType), Long.MIN_VALUE + 42, 8)
+        assertRoundTrip(findSerializerForClass(Int::class.javaObjectType), -42, 4)
+        assertRoundTrip(findSerializerForClass(String::class.java), "andrew", 10)
+
+        val bytes = byteArrayOf(1, 2, 3, -1)
+        val serializer = findSerializerForClass(ByteArray::class.java)
+        assertArrayEquals(bytes, serializer.read(serializer.serialize(bytes)))
+        assertEquals(8, serializer.serializedSize(bytes))
+    }
+
+    private fun <K> assertRoundTrip(serializer: Serializers<K>, value: K, size: Int) {
+        assertEquals(size, serializer.serializedSize(value))
+        val target = ByteBuffer.allocate(size + 1)
+        serializer.write(value, target)
+        target.put(7)
+        assertEquals(value, serializer.read(target.flip()))
+        assertEquals(7, target.get().toInt())
+    }
 }
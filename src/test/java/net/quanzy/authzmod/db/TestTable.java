@@ -1,5 +1,6 @@
 package net.quanzy.authzmod.db;
 
+import net.quanzy.authzmod.db.operations.FsyncPolicy;
 import net.quanzy.authzmod.db.utils.Utils;
 import org.apache.commons.codec.binary.Hex;
 import org.junit.jupiter.api.AfterEach;
@@ -8,12 +9,31 @@ import org.junit.jupiter.api.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 
 public class TestTable {
@@ -27,8 +47,13 @@ public class TestTable {
 
     @AfterEach
     public void teardown() throws IOException {
-        if (dbFile != null && Files.exists(dbFile.toPath())) {
-            Files.delete(dbFile.toPath());
+        if (dbFile == null) {
+            return;
+        }
+        // index, bloom filter, delta, generation and segment files are all named after the data file
+        File[] files = dbFile.getParentFile().listFiles((dir, name) -> name.startsWith(dbFile.getName()));
+        for (File file : files == null ? new File[0] : files) {
+            Files.deleteIfExists(file.toPath());
         }
     }
 
@@ -44,7 +69,56 @@ public class TestTable {
         String hash = Hex.encodeHexString(Utils.digest("bar"));
         assertEquals("foo", record.getUsername());
         assertEquals(hash, record.getHash());
-        assertEquals(75 /*3 + 64 + 8*/, record.length());
+        assertEquals(43 /*4 + 32 + 4 + 3*/, record.length());
+    }
+
+    @Test
+    public void testHexRecordRead() {
+        AuthzRecord record = new AuthzRecord(AuthzRecord.createHex("foo", "bar").contents());
+        assertFalse(record.isBinary());
+        assertEquals("foo", record.getUsername());
+        assertEquals(Hex.encodeHexString(Utils.digest("bar")), record.getHash());
+        assertTrue(record.matchesUsername("foo".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(record.hashEquals(Utils.digest("bar")));
+        assertFalse(record.hashEquals(Utils.digest("baz")));
+
+        AuthzRecord upgraded = record.upgrade();
+        assertTrue(upgraded.isBinary());
+        assertEquals("foo", upgraded.getUsername());
+        assertTrue(upgraded.hashEquals(Utils.digest("bar")));
+    }
+
+    @Test
+    public void testMigrateToBinaryLayout() throws IOException {
+        Table<String, AuthzRecord> db = Table.createOrRead(dbFile, AuthzRecord.class, String.class);
+        db.addRecord(AuthzRecord.createHex("andrew", "bar"));
+        db.addRecord(AuthzRecord.createHex("nicholas", "baz"));
+        db.addRecord(AuthzRecord.create("michael", "quartz"));
+        db.flush();
+
+        File migratedFile = Files.createTempFile("test-db", ".db").toFile();
+        Table<String, AuthzRecord> migrated = Table.createOrRead(migratedFile, AuthzRecord.class, String.class);
+        db.copyTo(migrated, AuthzRecord::upgrade, 2);
+        assertTrue(migrated.size() < db.size());
+        assertEquals(3, migrated.idxSize());
+        AuthzRecord andrew = migrated.getRecordLazily("andrew").orElseThrow();
+        assertTrue(andrew.isBinary() && andrew.hashEquals(Utils.digest("bar")));
+        AuthzRecord michael = migrated.getRecordLazily("michael").orElseThrow();
+        assertTrue(michael.isBinary() && michael.hashEquals(Utils.digest("quartz")));
+        assertTrue(migrated.getRecordLazily("nicholas").isPresent());
+        migrated.delete();
+        db.delete();
+    }
+
+    @Test
+    public void testRecordMatchesBytes() {
+        AuthzRecord record = new AuthzRecord(AuthzRecord.create("foo", "bar").contents());
+        assertTrue(record.matchesUsername("foo".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(record.matchesUsername("fo".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(record.matchesUsername("fob".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(record.hashEquals(Utils.digest("bar")));
+        assertFalse(record.hashEquals(Utils.digest("baz")));
+        assertEquals("foo", record.getKey());
     }
 
     @Test
@@ -126,4 +200,654 @@ public class TestTable {
         });
     }
 
+    @Test
+    public void testChannelReadMode() throws IOException {
+        TableOptions options = TableOptions.defaults().readMode(TableOptions.ReadMode.CHANNEL);
+        Table<String, AuthzRecord> db = Table.createOrRead(dbFile, AuthzRecord.class, String.class, options);
+        db.addRecord(AuthzRecord.create("andrew", "bar"));
+        db.addRecord(AuthzRecord.create("nicholas", "baz"));
+        db.flush();
+
+        Table<String, AuthzRecord> db1 = Table.createOrRead(dbFile, AuthzRecord.class, String.class, options);
+        assertTrue(db1.getRecordLazily("andrew").isPresent());
+        assertTrue(db1.getRecordLazily("nicholas").isPresent());
+        assertTrue(db1.getRecordLazily("michael").isEmpty());
+    }
+
+    @Test
+    public void testGetRecords() throws IOException {
+        for (TableOptions.ReadMode mode : TableOptions.ReadMode.values()) {
+            TableOptions options = TableOptions.defaults().readMode(mode);
+            Table<String, AuthzRecord> db = Table.createOrRead(dbFile, AuthzRecord.class, String.class, options);
+            for (int i = 0; i < 1_000; i++) {
+                db.addRecord(AuthzRecord.create("user-" + i, "password-" + i));
+            }
+            db.flush();
+            db.deleteRecord("user-1");
+            db.flush();
+            db.addRecord(AuthzRecord.create("pending", "password"));
+            db.deleteRecord("user-2");
+
+            List<String> keys = new ArrayList<>();
+            for (int i = 999; i >= 0; i -= 3) {
+                keys.add("user-" + i);
+            }
+            keys.addAll(List.of("user-1", "user-2", "pending", "ghost"));
+            Map<String, AuthzRecord> found = db.getRecords(keys);
+            for (String key : keys) {
+                assertEquals(db.getRecordLazily(key).map(AuthzRecord::getHash), Optional.ofNullable(found.get(key)).map(AuthzRecord::getHash), key);
+            }
+            assertTrue(found.containsKey("pending"));
+            assertFalse(found.containsKey("user-1") || found.containsKey("user-2") || found.containsKey("ghost"));
+            assertTrue(found.get("user-999").verify("password-999"));
+            assertEquals(found.keySet(), db.getRecords(keys).keySet());
+            db.delete();
+        }
+    }
+
+    @Test
+    public void testAsyncLookup() throws Exception {
+        AtomicInteger submitted = new AtomicInteger();
+        Executor counting = task -> {
+            submitted.incrementAndGet();
+            new Thread(task).start();
+        };
+        TableOptions options = TableOptions.defaults().lookupExecutor(counting);
+        Table<String, AuthzRecord> db = Table.createOrRead(dbFile, AuthzRecord.class, String.class, options);
+        db.addRecord(AuthzRecord.create("andrew", "bar"));
+        db.addRecord(AuthzRecord.create("nicholas", "baz"));
+        db.flush();
+        db.addRecord(AuthzRecord.create("michael", "quartz"));
+
+        CompletableFuture<Optional<AuthzRecord>> pending = db.getRecordAsync("michael");
+        assertTrue(pending.isDone() && pending.get().isPresent());
+        assertEquals(0, submitted.get());
+
+        assertTrue(db.getRecordAsync("andrew").get().map(r -> r.verify("bar")).orElse(false));
+        assertEquals(1, submitted.get());
+        CompletableFuture<Optional<AuthzRecord>> cached = db.getRecordAsync("andrew");
+        assertTrue(cached.isDone() && cached.get().isPresent(), "cache hits are served inline");
+        assertEquals(1, submitted.get());
+
+        assertTrue(db.deleteRecord("nicholas"));
+        assertTrue(db.getRecordAsync("nicholas").get().isEmpty());
+        Map<String, AuthzRecord> found = db.getRecordsAsync(List.of("andrew", "nicholas", "michael")).get();
+        assertEquals(Set.of("andrew", "michael"), found.keySet());
+        db.delete();
+
+        Table<String, AuthzRecord> own = Table.createOrRead(dbFile, AuthzRecord.class, String.class);
+        own.addRecord(AuthzRecord.create("andrew", "bar"));
+        own.flush();
+        assertTrue(own.getRecordAsync("andrew").get().isPresent());
+        own.close();
+        assertTrue(own.getRecordAsync("andrew").isDone(), "the lookup is served from the cache");
+        CompletableFuture<Map<String, AuthzRecord>> afterClose = own.getRecordsAsync(List.of("andrew"));
+        assertTrue(afterClose.isCompletedExceptionally());
+        afterClose.handle((records, e) -> {
+            assertTrue(e instanceof RejectedExecutionException, String.valueOf(e));
+            return null;
+        }).get();
+        own.delete();
+    }
+
+    @Test
+    public void testScan() throws IOException {
+        Table<String, AuthzRecord> db = Table.createOrRead(dbFile, AuthzRecord.class, String.class);
+        db.addRecord(AuthzRecord.create("andrew", "bar"));
+        db.addRecord(AuthzRecord.create("nicholas", "baz"));
+        db.addRecord(AuthzRecord.create("michael", "quartz"));
+        db.flush();
+        db.addRecord(AuthzRecord.create("dean", "ruby"));
+
+        Set<String> names = new HashSet<>();
+        db.scan((record, offset) -> names.add(record.getUsername()));
+        assertEquals(Set.of("andrew", "nicholas", "michael"), names);
+
+        int[] visited = new int[1];
+        db.scan((record, offset) -> ++visited[0] < 2);
+        assertEquals(2, visited[0]);
+    }
+
+    @Test
+    public void testOrderedIndex() throws IOException {
+        TableOptions options = TableOptions.defaults().orderedIndex(true);
+        Table<String, AuthzRecord> db = Table.createOrRead(dbFile, AuthzRecord.class, String.class, options);
+        for (int i = 9; i >= 0; i--) {
+            db.addRecord(AuthzRecord.create("user-" + i, "password"));
+            db.addRecord(AuthzRecord.create("guest-" + i, "password"));
+        }
+        db.addRecord(AuthzRecord.create("admin", "password"));
+        db.flush();
+        db.addRecord(AuthzRecord.create("guest-10", "password"));
+        assertTrue(db.deleteRecord("guest-3"));
+
+        List<String> guests = List.of("guest-0", "guest-1", "guest-10", "guest-2", "guest-4", "guest-5",
+                "guest-6", "guest-7", "guest-8", "guest-9");
+        assertEquals(guests, usernames(db.prefix("guest-")));
+        assertEquals(List.of("guest-8", "guest-9", "user-0", "user-1"), usernames(db.scan("guest-8", "user-2")));
+        assertEquals(List.of("admin"), usernames(db.scan(null, "guest-0")));
+        assertEquals(List.of(), usernames(db.prefix("nobody")));
+        db.flush();
+        db.close();
+
+        Table<String, AuthzRecord> reopened = Table.createOrRead(dbFile, AuthzRecord.class, String.class, options);
+        assertEquals(guests, usernames(reopened.prefix("guest-")));
+        assertEquals(List.of("user-8", "user-9"), usernames(reopened.scan("user-8", null)));
+        assertEquals(21, usernames(reopened.scan(null, null)).size());
+        assertTrue(reopened.addRecord(AuthzRecord.create("guest-3", "again")));
+        assertEquals(11, usernames(reopened.prefix("guest-")).size());
+        reopened.close();
+
+        Table<String, AuthzRecord> unordered = Table.createOrRead(dbFile, AuthzRecord.class, String.class);
+        assertThrows(IllegalStateException.class, () -> unordered.prefix("guest-"));
+        unordered.delete();
+    }
+
+    private static List<String> usernames(Iterator<AuthzRecord> records) {
+        List<String> names = new ArrayList<>();
+        records.forEachRemaining(record -> names.add(record.getUsername()));
+        return names;
+    }
+
+    @Test
+    public void testIndexRebuiltInParallel() throws IOException {
+        Table<String, AuthzRecord> db = Table.createOrRead(dbFile, AuthzRecord.class, String.class);
+        for (int i = 0; i < 20_000; i++) {
+            db.addRecord(AuthzRecord.create("user-" + i, "password-" + i));
+        }
+        db.flush();
+        long committed = db.size();
+        try (FileChannel channel = FileChannel.open(dbFile.toPath(), StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.allocate(Integer.BYTES + 10).putInt(100).rewind());
+        }
+        Files.delete(db.getIndexFile().toPath());
+
+        Table<String, AuthzRecord> db1 = Table.createOrRead(dbFile, AuthzRecord.class, String.class);
+        assertTrue(db1.indexExists());
+        assertEquals(committed, db1.size());
+        assertEquals(20_000, db1.idxSize());
+        assertEquals(0, db1.records());
+        assertTrue(db1.getRecordLazily("user-0").isPresent());
+        assertTrue(db1.getRecordLazily("user-19999").isPresent());
+        assertTrue(db1.getRecordLazily("user-20000").isEmpty());
+        db1.delete();
+    }
+
+    @Test
+    public void testTornTailTruncated() throws IOException {
+        Table<String, AuthzRecord> db = Table.createOrRead(dbFile, AuthzRecord.class, String.class);
+        db.addRecord(AuthzRecord.create("andrew", "bar"));
+        db.addRecord(AuthzRecord.create("nicholas", "baz"));
+        db.flush();
+        long committed = db.size();
+        try (FileChannel channel = FileChannel.open(dbFile.toPath(), StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.allocate(Integer.BYTES + 10).putInt(100).rewind());
+        }
+
+        Table<String, AuthzRecord> db1 = Table.createOrRead(dbFile, AuthzRecord.class, String.class);
+        assertEquals(committed, db1.size());
+        assertEquals(2, db1.idxSize());
+        db1.addRecord(AuthzRecord.create("michael", "quartz"));
+        db1.flush();
+        assertTrue(db1.getRecordLazily("andrew").isPresent());
+        assertTrue(db1.getRecordLazily("michael").isPresent());
+        db1.delete();
+    }
+
+    @Test
+    public void testCorruptedRecordTruncated() throws IOException {
+        Table<String, AuthzRecord> db = Table.createOrRead(dbFile, AuthzRecord.class, String.class);
+        db.addRecord(AuthzRecord.create("andrew", "bar"));
+        db.addRecord(AuthzRecord.create("nicholas", "baz"));
+        db.flush();
+        long intact = db.size();
+        db.addRecord(AuthzRecord.create("michael", "quartz"));
+        db.flush();
+        assertTrue(db.verify());
+        db.close();
+
+        // flip a byte in the contents of the last record
+        try (FileChannel channel = FileChannel.open(dbFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, intact + 12);
+            b.put(0, (byte) ~b.get(0));
+            channel.write(b.rewind(), intact + 12);
+        }
+
+        Table<String, AuthzRecord> unchecked = Table.createOrRead(dbFile, AuthzRecord.class, String.class);
+        assertFalse(unchecked.verify());
+        assertEquals(3, unchecked.idxSize(), "the index is trusted without the check on open");
+        unchecked.close();
+
+        TableOptions options = TableOptions.defaults().verifyOnOpen(true);
+        Table<String, AuthzRecord> db1 = Table.createOrRead(dbFile, AuthzRecord.class, String.class, options);
+        assertEquals(intact, db1.size());
+        assertEquals(2, db1.idxSize());
+        assertTrue(db1.verify());
+        assertTrue(db1.getRecordLazily("andrew").isPresent());
+        assertTrue(db1.getRecordLazily("michael").isEmpty());
+        assertTrue(db1.addRecord(AuthzRecord.create("michael", "quartz")));
+        db1.flush();
+        assertTrue(db1.getRecordLazily("michael").isPresent());
+        db1.delete();
+    }
+
+    @Test
+    public void testConcurrentAddDuringFlush() throws Exception {
+        Table<String, AuthzRecord> db = Table.createOrRead(dbFile, AuthzRecord.class, String.class);
+        int threads = 8;
+        int keys = 5_000;
+        AtomicInteger added = new AtomicInteger();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        Thread flusher = new Thread(() -> {
+            try {
+                while (writing.get()) {
+                    db.flush();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        flusher.start();
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < keys; i++) {
+                    if (db.addRecord(AuthzRecord.create("user-" + i, "password"))) {
+                        added.incrementAndGet();
+                    }
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        writing.set(false);
+        flusher.join();
+        db.flush();
+
+        assertEquals(keys, added.get());
+        assertEquals(0, db.records());
+        assertEquals(keys, db.idxSize());
+        for (int i = 0; i < keys; i++) {
+            assertTrue(db.getRecordLazily("user-" + i).isPresent(), "user-" + i);
+        }
+        db.delete();
+    }
+
+    @Test
+    public void testBackgroundFlushBySize() throws Exception {
+        TableOptions options = TableOptions.defaults().backgroundFlush(0, 100, 0);
+        Table<String, AuthzRecord> db = Table.createOrRead(dbFile, AuthzRecord.class, String.class, options);
+        for (int i = 0; i < 250; i++) {
+            db.addRecord(AuthzRecord.create("user-" + i, "password"));
+        }
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (db.idxSize() < 200 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(db.idxSize() >= 200);
+        assertTrue(db.flushStats().getFlushCount() >= 1);
+        assertTrue(db.flushStats().getBytesWritten() > 0);
+        db.close();
+        db.delete();
+    }
+
+    @Test
+    public void testBackgroundFlushByTimeWithRateLimit() throws Exception {
+        TableOptions options = TableOptions.defaults().backgroundFlush(0, 0, 20).flushRateLimit(1 << 20);
+        Table<String, AuthzRecord> db = Table.createOrRead(dbFile, AuthzRecord.class, String.class, options);
+        for (int i = 0; i < 5_000; i++) {
+            db.addRecord(AuthzRecord.create("user-" + i, "password"));
+        }
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (db.records() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, db.records());
+        assertEquals(5_000, db.idxSize());
+        FlushStats stats = db.flushStats();
+        assertEquals(5_000, stats.getRecordsWritten());
+        assertEquals(db.size(), stats.getBytesWritten());
+        // about 250 KB at 1 MB/s
+        assertTrue(stats.getTotalFlushNanos() >= 150_000_000L, stats.toString());
+        db.close();
+        db.delete();
+    }
+
+    @Test
+    public void testUpdateAndDelete() throws IOException {
+        Table<String, AuthzRecord> db = Table.createOrRead(dbFile, AuthzRecord.class, String.class);
+        db.addRecord(AuthzRecord.create("andrew", "bar"));
+        db.addRecord(AuthzRecord.create("nicholas", "baz"));
+        db.addRecord(AuthzRecord.create("michael", "quartz"));
+        db.flush();
+
+        assertTrue(db.updateRecord(AuthzRecord.create("andrew", "changed")));
+        assertFalse(db.updateRecord(AuthzRecord.create("dean", "ruby")));
+        assertTrue(db.deleteRecord("nicholas"));
+        assertFalse(db.deleteRecord("nicholas"));
+        assertTrue(db.getRecordLazily("nicholas").isEmpty());
+        assertTrue(db.getRecordLazily("andrew").map(r -> r.verify("changed")).orElse(false));
+        db.flush();
+
+        assertEquals(2, db.idxSize());
+        assertTrue(db.flushStats().getGarbageLength() > 0);
+        assertTrue(db.getRecordLazily("andrew").map(r -> r.verify("changed")).orElse(false));
+        assertTrue(db.getRecordLazily("nicholas").isEmpty());
+        assertTrue(db.addRecord(AuthzRecord.create("nicholas", "again")));
+        db.flush();
+        Set<String> names = new HashSet<>();
+        db.scan((record, offset) -> names.add(record.getUsername()));
+        assertEquals(Set.of("andrew", "nicholas", "michael"), names);
+
+        Table<String, AuthzRecord> db1 = Table.createOrRead(dbFile, AuthzRecord.class, String.class);
+        assertEquals(3, db1.idxSize());
+        assertTrue(db1.getRecordLazily("nicholas").map(r -> r.verify("again")).orElse(false));
+        assertTrue(db1.deleteRecord("michael"));
+        db1.flush();
+        Files.delete(db1.getIndexFile().toPath());
+
+        Table<String, AuthzRecord> db2 = Table.createOrRead(dbFile, AuthzRecord.class, String.class);
+        assertEquals(2, db2.idxSize());
+        assertEquals(db1.flushStats().getGarbageLength(), db2.flushStats().getGarbageLength());
+        assertTrue(db2.getRecordLazily("andrew").map(r -> r.verify("changed")).orElse(false));
+        assertTrue(db2.getRecordLazily("nicholas").map(r -> r.verify("again")).orElse(false));
+        assertTrue(db2.getRecordLazily("michael").isEmpty());
+        db2.delete();
+    }
+
+    @Test
+    public void testFlushAppendsToIndexDelta() throws IOException {
+        File deltaFile = new File(dbFile.getAbsolutePath() + ".idx.delta");
+        Table<String, AuthzRecord> db = Table.createOrRead(dbFile, AuthzRecord.class, String.class);
+        for (int i = 0; i < 100; i++) {
+            db.addRecord(AuthzRecord.create("user-" + i, "password"));
+        }
+        db.flush();
+        File indexFile = db.getIndexFile();
+        byte[] index = Files.readAllBytes(indexFile.toPath());
+        for (int i = 0; i < 10; i++) {
+            db.updateRecord(AuthzRecord.create("user-" + i, "changed"));
+            db.deleteRecord("user-" + (50 + i));
+            db.addRecord(AuthzRecord.create("new-" + i, "password"));
+            db.flush();
+        }
+        assertTrue(deltaFile.exists());
+        assertArrayEquals(index, Files.readAllBytes(indexFile.toPath()));
+        assertEquals(100, db.idxSize());
+        assertTrue(db.getRecordLazily("user-3").map(r -> r.verify("changed")).orElse(false));
+        assertTrue(db.getRecordLazily("user-55").isEmpty());
+        assertTrue(db.getRecordLazily("new-7").isPresent());
+
+        Table<String, AuthzRecord> db1 = Table.createOrRead(dbFile, AuthzRecord.class, String.class);
+        assertEquals(100, db1.idxSize());
+        assertEquals(db.flushStats().getGarbageLength(), db1.flushStats().getGarbageLength());
+        assertTrue(db1.getRecordLazily("user-3").map(r -> r.verify("changed")).orElse(false));
+        assertTrue(db1.getRecordLazily("user-55").isEmpty());
+        assertEquals(Set.of("user-9", "new-9"), db1.getRecords(List.of("user-9", "user-59", "new-9")).keySet());
+        Set<String> names = new HashSet<>();
+        db1.scan((record, offset) -> names.add(record.getUsername()));
+        assertEquals(100, names.size());
+        assertFalse(names.contains("user-55"));
+        assertTrue(db1.addRecord(AuthzRecord.create("user-55", "again")));
+        db1.flush();
+
+        db1.compact();
+        assertFalse(deltaFile.exists());
+        assertEquals(101, db1.idxSize());
+        assertTrue(db1.getRecordLazily("user-3").map(r -> r.verify("changed")).orElse(false));
+        assertTrue(db1.getRecordLazily("user-55").map(r -> r.verify("again")).orElse(false));
+        db1.delete();
+    }
+
+    @Test
+    public void testMergedIndexIsWrittenAsNewVersion() throws IOException {
+        Table<String, AuthzRecord> db = Table.createOrRead(dbFile, AuthzRecord.class, String.class);
+        File created = db.getIndexFile();
+        for (int i = 0; i < 5_000; i++) {
+            db.addRecord(AuthzRecord.create("user-" + i, "password"));
+        }
+        db.flush();
+        // the delta outgrew the index, which is rewritten under a new name instead of over the mapped file
+        File merged = db.getIndexFile();
+        assertNotEquals(created, merged);
+        assertFalse(created.exists());
+        assertTrue(merged.exists());
+        assertTrue(db.getFilterFile().exists());
+
+        Table<String, AuthzRecord> db1 = Table.createOrRead(dbFile, AuthzRecord.class, String.class);
+        assertEquals(merged, db1.getIndexFile());
+        assertEquals(5_000, db1.idxSize());
+        db1.delete();
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        Table<String, AuthzRecord> db = Table.createOrRead(dbFile, AuthzRecord.class, String.class);
+        for (int i = 0; i < 1_000; i++) {
+            db.addRecord(AuthzRecord.create("user-" + i, "password"));
+        }
+        db.flush();
+        long initialSize = db.size();
+        for (int i = 0; i < 1_000; i++) {
+            if (i % 2 == 0) {
+                db.updateRecord(AuthzRecord.create("user-" + i, "changed"));
+            } else if (i % 3 == 0) {
+                db.deleteRecord("user-" + i);
+            }
+        }
+        db.flush();
+        FlushStats before = db.flushStats();
+        assertTrue(before.getSpaceAmplification() > 1.5, before.toString());
+
+        db.compact();
+        FlushStats after = db.flushStats();
+        assertEquals(1, after.getCompactionCount());
+        assertEquals(0, after.getGarbageLength());
+        assertEquals(db.size(), after.getBytesCompacted());
+        assertTrue(db.size() < initialSize);
+        assertTrue(after.getWriteAmplification() > 1);
+        // compacted files are the next generation, the old one is deleted instead of renamed over
+        assertFalse(dbFile.exists());
+        assertTrue(new File(dbFile.getAbsolutePath() + ".gen.1").exists());
+        for (int i = 0; i < 1_000; i++) {
+            Optional<AuthzRecord> record = db.getRecordLazily("user-" + i);
+            if (i % 2 == 0) {
+                assertTrue(record.map(r -> r.verify("changed")).orElse(false), "user-" + i);
+            } else {
+                assertEquals(i % 3 != 0, record.isPresent(), "user-" + i);
+            }
+        }
+        db.updateRecord(AuthzRecord.create("user-1", "after"));
+        db.flush();
+
+        Table<String, AuthzRecord> db1 = Table.createOrRead(dbFile, AuthzRecord.class, String.class);
+        assertEquals(db.idxSize(), db1.idxSize());
+        assertTrue(db1.getRecordLazily("user-1").map(r -> r.verify("after")).orElse(false));
+        assertTrue(db1.getRecordLazily("user-3").isEmpty());
+        db1.delete();
+        File[] left = dbFile.getParentFile().listFiles((dir, name) -> name.startsWith(dbFile.getName()));
+        assertEquals(0, left.length, Arrays.toString(left));
+    }
+
+    @Test
+    public void testBackgroundCompaction() throws Exception {
+        TableOptions options = TableOptions.defaults().backgroundFlush(0, 0, 10).compaction(2, 0);
+        Table<String, AuthzRecord> db = Table.createOrRead(dbFile, AuthzRecord.class, String.class, options);
+        for (int i = 0; i < 100; i++) {
+            db.addRecord(AuthzRecord.create("user-" + i, "password"));
+        }
+        db.flush();
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 100; i++) {
+                assertTrue(db.updateRecord(AuthzRecord.create("user-" + i, "password-" + round)));
+            }
+            db.flush();
+        }
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (db.flushStats().getSpaceAmplification() >= 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        db.close();
+        assertTrue(db.flushStats().getCompactionCount() > 0, db.flushStats().toString());
+        assertTrue(db.flushStats().getSpaceAmplification() < 2, db.flushStats().toString());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(db.getRecordLazily("user-" + i).map(r -> r.verify("password-4")).orElse(false));
+        }
+        db.delete();
+    }
+
+    @Test
+    public void testWriteAheadLogReplaysVersions() throws IOException {
+        TableOptions options = TableOptions.defaults().writeAheadLog(FsyncPolicy.perWrite());
+        Table<String, AuthzRecord> db = Table.createOrRead(dbFile, AuthzRecord.class, String.class, options);
+        db.addRecord(AuthzRecord.create("andrew", "bar"));
+        db.addRecord(AuthzRecord.create("nicholas", "baz"));
+        db.flush();
+        db.updateRecord(AuthzRecord.create("andrew", "changed"));
+        db.deleteRecord("nicholas");
+        db.close();
+
+        Table<String, AuthzRecord> db1 = Table.createOrRead(dbFile, AuthzRecord.class, String.class, options);
+        assertTrue(db1.getRecordLazily("andrew").map(r -> r.verify("changed")).orElse(false));
+        assertTrue(db1.getRecordLazily("nicholas").isEmpty());
+        db1.flush();
+        assertEquals(1, db1.idxSize());
+        db1.delete();
+    }
+
+    @Test
+    public void testBloomFilter() throws IOException {
+        Table<String, AuthzRecord> db = Table.createOrRead(dbFile, AuthzRecord.class, String.class);
+        for (int i = 0; i < 1_000; i++) {
+            db.addRecord(AuthzRecord.create("user-" + i, "password"));
+        }
+        db.flush();
+        File filterFile = db.getFilterFile();
+        assertTrue(filterFile.exists());
+        assertTrue(db.getRecordLazily("user-0").isPresent());
+        assertTrue(db.getRecordLazily("bot-0").isEmpty());
+        assertFalse(db.addRecord(AuthzRecord.create("user-1", "password")));
+        assertTrue(db.deleteRecord("user-2"));
+        db.flush();
+        assertTrue(db.getRecordLazily("user-2").isEmpty());
+        assertTrue(db.addRecord(AuthzRecord.create("user-2", "again")));
+        db.flush();
+
+        Files.delete(filterFile.toPath());
+        Table<String, AuthzRecord> db1 = Table.createOrRead(dbFile, AuthzRecord.class, String.class);
+        assertTrue(filterFile.exists());
+        for (int i = 0; i < 1_000; i++) {
+            assertTrue(db1.getRecordLazily("user-" + i).isPresent(), "user-" + i);
+        }
+        assertTrue(db1.getRecordLazily("user-2").map(r -> r.verify("again")).orElse(false));
+        assertTrue(db1.getRecordLazily("bot-0").isEmpty());
+        db1.delete();
+        assertFalse(filterFile.exists());
+    }
+
+    @Test
+    public void testSegments() throws IOException {
+        TableOptions options = TableOptions.defaults().segmentSize(4096);
+        Table<String, AuthzRecord> db = Table.createOrRead(dbFile, AuthzRecord.class, String.class, options);
+        for (int batch = 0; batch < 10; batch++) {
+            for (int i = batch * 100; i < (batch + 1) * 100; i++) {
+                db.addRecord(AuthzRecord.create("user-" + i, "password"));
+            }
+            db.flush();
+        }
+        assertTrue(segmentFiles().length >= 10 * 3, "data, index and bloom filter of every segment");
+        assertFalse(db.addRecord(AuthzRecord.create("user-1", "password")));
+        for (int i = 0; i < 1_000; i++) {
+            if (i % 2 == 0) {
+                assertTrue(db.updateRecord(AuthzRecord.create("user-" + i, "changed")), "user-" + i);
+            } else if (i % 3 == 0) {
+                assertTrue(db.deleteRecord("user-" + i), "user-" + i);
+            }
+        }
+        db.flush();
+        assertTrue(db.addRecord(AuthzRecord.create("user-3", "again")));
+        db.flush();
+        assertSegmentedRecords(db);
+
+        Table<String, AuthzRecord> db1 = Table.createOrRead(dbFile, AuthzRecord.class, String.class, options);
+        assertSegmentedRecords(db1);
+        long size = db1.size();
+        assertTrue(db1.flushStats().getGarbageLength() > 0);
+        db1.compactSegments();
+        assertTrue(db1.size() < size);
+        assertTrue(db1.flushStats().getCompactionCount() > 0);
+        assertSegmentedRecords(db1);
+
+        Table<String, AuthzRecord> db2 = Table.createOrRead(dbFile, AuthzRecord.class, String.class, options);
+        assertSegmentedRecords(db2);
+        db2.delete();
+        assertEquals(0, segmentFiles().length);
+    }
+
+    private void assertSegmentedRecords(Table<String, AuthzRecord> db) throws IOException {
+        for (int i = 0; i < 1_000; i++) {
+            Optional<AuthzRecord> record = db.getRecordLazily("user-" + i);
+            if (i % 2 == 0) {
+                assertTrue(record.map(r -> r.verify("changed")).orElse(false), "user-" + i);
+            } else if (i == 3) {
+                assertTrue(record.map(r -> r.verify("again")).orElse(false), "user-" + i);
+            } else {
+                assertEquals(i % 3 != 0, record.isPresent(), "user-" + i);
+            }
+        }
+        Set<String> scanned = new HashSet<>();
+        db.scan((record, offset) -> {
+            assertTrue(scanned.add(record.getKey()), record.getKey());
+            assertTrue(!record.getKey().equals("user-3") || record.verify("again"), record.getKey());
+            return true;
+        });
+        assertEquals(1_000 - 167 + 1, scanned.size());
+    }
+
+    private File[] segmentFiles() {
+        String prefix = dbFile.getName() + ".seg.";
+        return dbFile.getParentFile().listFiles((dir, name) -> name.startsWith(prefix));
+    }
+
+    @Test
+    public void testWriteAheadLogRecovery() throws IOException {
+        TableOptions options = TableOptions.defaults().writeAheadLog(FsyncPolicy.perWrite());
+        Table<String, AuthzRecord> db = Table.createOrRead(dbFile, AuthzRecord.class, String.class, options);
+        db.addRecord(AuthzRecord.create("andrew", "bar"));
+        db.flush();
+        db.addRecord(AuthzRecord.create("nicholas", "baz"));
+        // not closed, close would flush the record, as if the process died here
+
+        Table<String, AuthzRecord> db1 = Table.createOrRead(dbFile, AuthzRecord.class, String.class, options);
+        assertTrue(db1.getRecordLazily("andrew").isPresent());
+        assertTrue(db1.getRecord("nicholas").isPresent());
+        db1.flush();
+        db1.close();
+
+        Table<String, AuthzRecord> db2 = Table.createOrRead(dbFile, AuthzRecord.class, String.class, options);
+        assertEquals(0, db2.records());
+        assertEquals(2, db2.idxSize());
+        db2.delete();
+    }
+
+    @Test
+    public void testCloseFlushesPendingRecords() throws IOException {
+        Table<String, AuthzRecord> db = Table.createOrRead(dbFile, AuthzRecord.class, String.class);
+        db.addRecord(AuthzRecord.create("andrew", "bar"));
+        db.flush();
+        db.addRecord(AuthzRecord.create("nicholas", "baz"));
+        db.deleteRecord("andrew");
+        db.close();
+        assertEquals(0, db.records());
+
+        Table<String, AuthzRecord> db1 = Table.createOrRead(dbFile, AuthzRecord.class, String.class);
+        assertTrue(db1.getRecordLazily("nicholas").map(r -> r.verify("baz")).orElse(false));
+        assertTrue(db1.getRecordLazily("andrew").isEmpty());
+        db1.delete();
+    }
+
 }
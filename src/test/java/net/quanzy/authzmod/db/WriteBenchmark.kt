@@ -0,0 +1,56 @@
+package net.quanzy.authzmod.db
+
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.nio.file.Files
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.concurrent.thread
+
+@Tag("benchmark")
+class WriteBenchmark {
+
+    lateinit var dbFile: File
+
+    @BeforeEach
+    fun setup() {
+        dbFile = Files.createTempFile("bench-db", ".db").toFile()
+    }
+
+    @AfterEach
+    fun teardown() {
+        deleteTableFiles(dbFile)
+    }
+
+    @Test
+    fun `Add 400k records on 4 threads while flushing`() {
+        val records = (0 until 400_000).map { AuthzRecord.create("user-$it", "password-$it") }
+        var table: Table<String, AuthzRecord>? = null
+        benchmark("add 400k records, 4 writers, background flushes", warmup = 0) {
+            Files.deleteIfExists(File(dbFile.absolutePath + ".idx").toPath())
+            Files.write(dbFile.toPath(), ByteArray(0))
+            val db = Table.createOrRead(dbFile, AuthzRecord::class.java, String::class.java)
+            val writing = AtomicBoolean(true)
+            val flusher = thread {
+                while (writing.get()) {
+                    db.flush()
+                }
+            }
+            (0 until 4).map { t ->
+                thread {
+                    for (i in t until records.size step 4) {
+                        db.addRecord(records[i])
+                    }
+                }
+            }.forEach { it.join() }
+            writing.set(false)
+            flusher.join()
+            db.flush()
+            table = db
+        }
+        assertEquals(400_000L, table!!.idxSize())
+    }
+}
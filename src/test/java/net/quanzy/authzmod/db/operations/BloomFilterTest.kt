@@ -0,0 +1,52 @@
+package net.quanzy.authzmod.db.operations
+
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotNull
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.nio.file.Files
+
+class BloomFilterTest {
+    val filterFile: File = Files.createTempFile("test-filter", ".bloom").toFile()
+
+    @AfterEach
+    fun teardown() {
+        Files.deleteIfExists(filterFile.toPath())
+    }
+
+    @Test
+    fun testNoFalseNegativesAndBoundedFalsePositives() {
+        val filter = BloomFilter.create(100_000, 0.01)
+        for (i in 0 until 100_000) {
+            filter.add(OffsetIndex.hash("key-$i"))
+        }
+        for (i in 0 until 100_000) {
+            assertTrue(filter.mightContain(OffsetIndex.hash("key-$i")))
+        }
+        val falsePositives = (0 until 100_000).count { filter.mightContain(OffsetIndex.hash("missing-$it")) }
+        assertTrue(falsePositives < 2_000, "$falsePositives false positives")
+        assertTrue(filter.memoryUsage() < 150_000)
+    }
+
+    @Test
+    fun testWriteAndOpen() {
+        assertNull(BloomFilter.open(filterFile, 0))
+        val filter = BloomFilter.create(1_000, 0.001)
+        for (i in 0 until 1_000) {
+            filter.add(OffsetIndex.hash("key-$i"))
+        }
+        filter.write(filterFile, 12_345L)
+
+        assertNull(BloomFilter.open(filterFile, 12_346L), "written for other data")
+        val mapped = BloomFilter.open(filterFile, 12_345L)
+        assertNotNull(mapped)
+        assertEquals(12_345L, mapped!!.dataLength)
+        for (i in 0 until 1_000) {
+            assertTrue(mapped.mightContain(OffsetIndex.hash("key-$i")))
+            assertEquals(filter.mightContain(OffsetIndex.hash("missing-$i")), mapped.mightContain(OffsetIndex.hash("missing-$i")))
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package net.quanzy.authzmod.db.operations
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+
+class FlushThrottleTest {
+
+    @Test
+    fun testWaitForLargeFlushDoesNotOverflow() {
+        val throttle = FlushThrottle(1_000_000_000L)
+        assertEquals(20_000_000_000L, throttle.nanosFor(20_000_000_000L))
+        assertEquals(1_500_000_000L, FlushThrottle(1_000).nanosFor(1_500))
+    }
+}
@@ -1,6 +1,8 @@
 package net.quanzy.authzmod.db.operations
 
+import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Test
+import java.io.RandomAccessFile
 
 class IndexOperationsTest {
     val indexOperations = IndexOperations(String::class.java)
@@ -24,4 +26,42 @@ class IndexOperationsTest {
         }
     }
 
-}
\ No newline at end of file
+    @Test
+    fun testParallelReadIndex() {
+        val indices = (0 until 100_000).associate { "key-$it" to it * 10L }
+        val indexFile = indexOperations.writeIndex(indices)
+        try {
+            assertEquals(indices, indexOperations.readIndex(indexFile, true))
+            assertEquals(indices.size, indexOperations.loadOffsets(indexFile, true).size())
+        } finally {
+            indexFile.delete()
+        }
+    }
+
+    @Test
+    fun testTruncatedIndex() {
+        val indexFile = indexOperations.writeIndex(testIndices)
+        try {
+            RandomAccessFile(indexFile, "rw").use { it.setLength(it.length() - 3) }
+            assertEquals(testIndices.size - 1, indexOperations.readIndex(indexFile).size)
+        } finally {
+            indexFile.delete()
+        }
+    }
+
+    @Test
+    fun testCorruptedKeyLength() {
+        val indexFile = indexOperations.writeIndex(testIndices)
+        try {
+            // key length of the second entry, behind entry size, offset and the first 20-byte entry
+            RandomAccessFile(indexFile, "rw").use {
+                it.seek(20L + Int.SIZE_BYTES + Long.SIZE_BYTES)
+                it.writeInt(Int.MAX_VALUE)
+            }
+            assertEquals(mapOf("key1" to 100L), indexOperations.readIndex(indexFile))
+        } finally {
+            indexFile.delete()
+        }
+    }
+
+}
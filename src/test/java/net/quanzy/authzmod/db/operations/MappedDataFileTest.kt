@@ -0,0 +1,61 @@
+package net.quanzy.authzmod.db.operations
+
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+
+class MappedDataFileTest {
+    val dataFile: File = Files.createTempFile("test-data", ".db").toFile()
+    val movedFile = File(dataFile.absolutePath + ".moved")
+
+    @AfterEach
+    fun teardown() {
+        Files.deleteIfExists(dataFile.toPath())
+        Files.deleteIfExists(movedFile.toPath())
+    }
+
+    private fun frames(vararg contents: String): ByteArray {
+        val buffer = ByteBuffer.allocate(contents.sumOf { Int.SIZE_BYTES + it.length })
+        for (record in contents) {
+            buffer.putInt(record.length).put(record.toByteArray(StandardCharsets.US_ASCII))
+        }
+        return buffer.array()
+    }
+
+    private fun MappedDataFile.text(offset: Long): String? =
+        recordAt(offset)?.let { StandardCharsets.US_ASCII.decode(it).toString() }
+
+    @Test
+    fun testSealedMappingIgnoresNewFileAtPath() {
+        Files.write(dataFile.toPath(), frames("abc", "de"))
+        val data = MappedDataFile(dataFile)
+        data.remap()
+        data.seal()
+        Files.move(dataFile.toPath(), movedFile.toPath(), StandardCopyOption.ATOMIC_MOVE)
+        Files.write(dataFile.toPath(), frames("a", "b", "c", "d"))
+
+        assertEquals("abc", data.text(0))
+        assertEquals("de", data.text(7))
+        // past the mapping, a remap would have mapped the new file
+        assertNull(data.text(13))
+        assertEquals(13, data.length)
+    }
+
+    @Test
+    fun testTruncateDropsMappingPastLength() {
+        Files.write(dataFile.toPath(), frames("abc", "de"))
+        val data = MappedDataFile(dataFile)
+        data.remap()
+        data.truncate(7)
+        assertEquals(7, dataFile.length())
+        assertEquals("abc", data.text(0))
+        assertNull(data.text(7))
+        assertEquals(7, data.length)
+    }
+}
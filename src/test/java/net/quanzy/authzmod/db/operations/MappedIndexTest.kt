@@ -0,0 +1,37 @@
+package net.quanzy.authzmod.db.operations
+
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.nio.file.Files
+
+class MappedIndexTest {
+    val indexFile: File = Files.createTempFile("test-idx", ".idx").toFile()
+
+    @AfterEach
+    fun teardown() {
+        Files.deleteIfExists(indexFile.toPath())
+    }
+
+    @Test
+    fun testWriteAndProbe() {
+        assertFalse(MappedIndex.isMappedIndex(indexFile))
+        val offsets = OffsetIndex()
+        for (i in 0 until 10_000) {
+            offsets.add(OffsetIndex.hash("key-$i"), i * 100L)
+        }
+        MappedIndex.write(indexFile, offsets, 1_000_000L)
+        assertTrue(MappedIndex.isMappedIndex(indexFile))
+
+        val index = MappedIndex.open(indexFile)
+        assertEquals(10_000, index.entryCount)
+        assertEquals(1_000_000L, index.dataLength)
+        for (i in 0 until 10_000) {
+            assertEquals(i * 100L, index.get(OffsetIndex.hash("key-$i")) { it == i * 100L })
+        }
+        assertEquals(-1L, index.get(OffsetIndex.hash("missing")) { false })
+    }
+}
@@ -0,0 +1,47 @@
+package net.quanzy.authzmod.db.operations
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+
+class OffsetIndexTest {
+
+    @Test
+    fun testAddAndGet() {
+        val index = OffsetIndex()
+        for (i in 0 until 10_000) {
+            index.add(OffsetIndex.hash("key-$i"), i * 100L)
+        }
+        assertEquals(10_000, index.size())
+        for (i in 0 until 10_000) {
+            assertEquals(i * 100L, index.get(OffsetIndex.hash("key-$i")) { it == i * 100L })
+        }
+        assertEquals(-1L, index.get(OffsetIndex.hash("missing")) { false })
+    }
+
+    @Test
+    fun testCollidingHashes() {
+        val index = OffsetIndex()
+        index.add(42, 10L)
+        index.add(42, 20L)
+        index.add(42, 30L)
+        assertEquals(20L, index.get(42) { it == 20L })
+        assertEquals(30L, index.get(42) { it == 30L })
+        assertEquals(-1L, index.get(42) { it == 40L })
+    }
+
+    @Test
+    fun testPutReplacesVersion() {
+        val index = OffsetIndex()
+        index.add(42, 10L)
+        index.add(42, 20L)
+        assertEquals(20L, index.put(42, 50L) { it == 20L })
+        assertEquals(-1L, index.put(42, 60L) { false })
+        assertEquals(3, index.size())
+        assertEquals(-1L, index.get(42) { it == 20L })
+        assertEquals(50L, index.get(42) { it == 50L })
+
+        val filtered = index.filter { it != 10L }
+        assertEquals(2, filtered.size())
+        assertEquals(-1L, filtered.get(42) { it == 10L })
+    }
+}
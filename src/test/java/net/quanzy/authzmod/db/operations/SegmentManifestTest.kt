@@ -0,0 +1,50 @@
+package net.quanzy.authzmod.db.operations
+
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.file.Files
+
+class SegmentManifestTest {
+    val manifestFile: File = File(Files.createTempDirectory("test-manifest").toFile(), "table.segments")
+
+    @AfterEach
+    fun teardown() {
+        Files.deleteIfExists(manifestFile.toPath())
+        Files.deleteIfExists(manifestFile.parentFile.toPath())
+    }
+
+    @Test
+    fun testWriteAndRead() {
+        val manifest = SegmentManifest(manifestFile)
+        assertFalse(manifest.exists())
+        assertEquals(SegmentManifest.Contents(0, emptyList()), manifest.read())
+
+        val entries = listOf(SegmentManifest.Entry(7, 120), SegmentManifest.Entry(3, 0), SegmentManifest.Entry(1, 4_096))
+        manifest.write(0, entries)
+        assertTrue(manifest.exists())
+        assertEquals(SegmentManifest.Contents(0, entries), manifest.read())
+
+        manifest.write(5, entries.drop(1))
+        assertEquals(SegmentManifest.Contents(5, entries.drop(1)), SegmentManifest(manifestFile).read())
+        manifest.delete()
+        assertFalse(manifest.exists())
+    }
+
+    @Test
+    fun testCorruptedManifest() {
+        val manifest = SegmentManifest(manifestFile)
+        manifest.write(0, listOf(SegmentManifest.Entry(2, 10), SegmentManifest.Entry(1, 20)))
+        RandomAccessFile(manifestFile, "rw").use { file ->
+            file.seek(20)
+            file.write(0xFF)
+        }
+        assertThrows(IOException::class.java) { manifest.read() }
+    }
+}
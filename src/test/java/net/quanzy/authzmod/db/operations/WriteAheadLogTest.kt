@@ -0,0 +1,56 @@
+package net.quanzy.authzmod.db.operations
+
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.concurrent.thread
+
+class WriteAheadLogTest {
+    val dataFile: File = Files.createTempFile("test-wal", ".db").toFile()
+
+    @AfterEach
+    fun teardown() {
+        WriteAheadLog(dataFile, FsyncPolicy.perWrite()).delete()
+        Files.deleteIfExists(dataFile.toPath())
+    }
+
+    @Test
+    fun testConcurrentAppendAndReplay() {
+        val log = WriteAheadLog(dataFile, FsyncPolicy.perWrite())
+        (0 until 8).map { t ->
+            thread {
+                for (i in 0 until 500) {
+                    log.append(ByteBuffer.wrap("record-$t-$i".toByteArray()))
+                }
+            }
+        }.forEach { it.join() }
+        log.close()
+
+        val replayed = ConcurrentHashMap.newKeySet<String>()
+        val reopened = WriteAheadLog(dataFile, FsyncPolicy.interval(10))
+        assertEquals(4000, reopened.replay { replayed.add(String(ByteArray(it.remaining()).also(it::get))) })
+        assertEquals(4000, replayed.size)
+        reopened.close()
+    }
+
+    @Test
+    fun testTornTailIsTruncated() {
+        val log = WriteAheadLog(dataFile, FsyncPolicy.everyRecords(2))
+        log.append(ByteBuffer.wrap("first".toByteArray()))
+        log.append(ByteBuffer.wrap("second".toByteArray()))
+        val sealed = log.rollover()
+        log.close()
+        val segment = File(dataFile.absolutePath + ".wal." + sealed)
+        RandomAccessFile(segment, "rw").use { it.setLength(it.length() - 2) }
+
+        val reopened = WriteAheadLog(dataFile, FsyncPolicy.perWrite())
+        assertEquals(1, reopened.replay { })
+        reopened.close()
+        assertEquals((Int.SIZE_BYTES * 2 + "first".length).toLong(), segment.length())
+    }
+}
@@ -0,0 +1,37 @@
+package net.quanzy.authzmod.db.utils
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+
+class UtilsTest {
+
+    private fun expected(input: String) = MessageDigest.getInstance("SHA-256").digest(input.toByteArray(Charsets.UTF_8))
+
+    @Test
+    fun testDigestMatchesStringBytes() {
+        val long = "пароль-".repeat(100)
+        for (input in listOf("", "bar", long, StringBuilder("bar\uD800"))) {
+            assertTrue(expected(input.toString()).contentEquals(Utils.digest(input)), "digest of $input")
+        }
+        assertTrue(expected(long).contentEquals(Utils.digest(long.toByteArray(Charsets.UTF_8))))
+    }
+
+    @Test
+    fun testConcurrentDigest() {
+        val mismatches = AtomicInteger()
+        (0 until 8).map { t ->
+            thread {
+                for (i in 0 until 2000) {
+                    if (!expected("password-$t-$i").contentEquals(Utils.digest("password-$t-$i"))) {
+                        mismatches.incrementAndGet()
+                    }
+                }
+            }
+        }.forEach { it.join() }
+        assertEquals(0, mismatches.get())
+    }
+}